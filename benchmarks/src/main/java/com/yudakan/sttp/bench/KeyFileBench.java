@@ -0,0 +1,78 @@
+package com.yudakan.sttp.bench;
+
+import com.yudakan.sttp.Key;
+import com.yudakan.sttp.RandomSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * KeyFileBench Class
+ *
+ * Key save & load through a Key File in a temporary directory. A save
+ * syncs the file before it is moved in place, so it measures the disk
+ * as much as the code.
+ *
+ * @author yka
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class KeyFileBench {
+
+    /* Attributes */
+    @Param({ "16", "512", "4096", "65536" })
+    public int bmpc;
+
+    private File dir, keyFile;
+    private Key key;
+
+
+    /* Methods */
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("sttp-bench-").toFile();
+        keyFile = new File(dir, "key");
+        key = new Key.Keygen().setBmpc(bmpc).setRandom(RandomSource.seeded(0)).build();
+        key.saveAs(keyFile);
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public Key save() throws IOException {
+        key.save();
+        return key;
+    }
+
+    @Benchmark
+    public Key load() throws IOException {
+        return new Key(keyFile);
+    }
+}
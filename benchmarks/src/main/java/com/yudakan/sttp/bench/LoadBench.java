@@ -0,0 +1,107 @@
+package com.yudakan.sttp.bench;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+import com.yudakan.sttp.Key;
+import com.yudakan.sttp.TunnelRunner;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * LoadBench Class
+ *
+ * Many blocking tunnels of a {@link TunnelRunner} open at once over
+ * loopback, each one a thread, virtual or platform. Not a JMH benchmark,
+ * run with:
+ * java -cp benchmarks/target/benchmarks.jar com.yudakan.sttp.bench.LoadBench [tunnels] [platform]
+ *
+ * Both ends of a tunnel run in this process, two sockets per tunnel: the
+ * default 10000 tunnels need ulimit -n 20256 or more, it stops at once
+ * when the limit is lower.
+ * Java 21, 1 core, 5 GB: 4000 tunnels take 6.6 s on virtual threads &
+ * 14.0 s on platform ones. At 9800, the most a 20000 files limit holds,
+ * virtual threads take 13.3 s & platform ones did not end in 10 min.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public final class LoadBench {
+    private static final int SPARE_FILES = 256; // jars, pipes & the server socket
+    private LoadBench() {}
+
+    /* MAIN */
+    public static void main(String[] args) throws Exception {
+        final int tunnels = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        final boolean platform = args.length > 1 && args[1].equals("platform");
+
+        // Both ends of every tunnel live in this process
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof UnixOperatingSystemMXBean os
+                && os.getMaxFileDescriptorCount() < 2L*tunnels + SPARE_FILES) {
+            System.err.println("Open files limit " + os.getMaxFileDescriptorCount() + " too low for " + tunnels
+                    + " tunnels, raise it to " + (2L*tunnels + SPARE_FILES) + " with ulimit -n.");
+            System.exit(1);
+        }
+
+        byte[] a = new Key.Keygen().setBmpc(64).build().toBytes();
+        byte[] b = new Key.Keygen().setBmpc(64).build().toBytes();
+        byte[] hello = "hello".getBytes();
+
+        // Both sides get their own copy of the same pair
+        TunnelRunner runner = new TunnelRunner.Builder()
+                .setKeys(peer -> new Key[]{ new Key(a), new Key(b) })
+                .setVirtual(!platform)
+                .build();
+
+        // Every tunnel is open at the same time before any of them answers
+        CountDownLatch greeted = new CountDownLatch(tunnels);
+        AtomicInteger answered = new AtomicInteger(), peak = new AtomicInteger();
+
+        System.out.println("*** " + tunnels + " concurrent tunnels on " + (runner.isVirtual() ? "virtual" : "platform") + " threads");
+        long start = System.nanoTime();
+
+        // Closed by hand, the acceptor only stops once it is
+        ServerSocket serverSocket = new ServerSocket(0, tunnels);
+        Thread acceptor = new Thread(() -> {
+            try {
+                runner.serve(serverSocket, sttp -> {
+                    sttp.push(hello);
+                    if (sttp.pull() != null) answered.incrementAndGet();
+                });
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        acceptor.start();
+
+        try {
+            List<Future<?>> clients = new ArrayList<>(tunnels);
+            for (int i=0; i < tunnels; i++)
+                clients.add(runner.connect("127.0.0.1", serverSocket.getLocalPort(), sttp -> {
+                    byte[] msg = sttp.pull();
+                    greeted.countDown();
+                    if (greeted.getCount() == 0) peak.accumulateAndGet(runner.getActive(), Math::max);
+                    greeted.await();
+                    sttp.push(msg);
+                }));
+
+            for (Future<?> client : clients) client.get();
+        }
+        finally {
+            serverSocket.close();
+            acceptor.join();
+            runner.close();
+        }
+
+        long nanos = System.nanoTime() - start;
+        System.out.printf("peak %d tunnels   answered %d/%d   %8.1f ms%n", peak.get(), answered.get(), tunnels, nanos / 1e6);
+    }
+}
@@ -0,0 +1,74 @@
+package com.yudakan.sttp.bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * MemoryPipe Class
+ *
+ * In-memory pipe for one thread: one tunnel pushes a whole message into
+ * it, the other pulls it back out. The buffer grows to the largest
+ * message and is then reused, so a measure sees tunnel costs only, not
+ * the pipe's, nor a thread hand-off.
+ *
+ * @author yka
+ * @version 1.0
+ */
+final class MemoryPipe {
+
+    /* Attributes */
+    private byte[] buf = new byte[64 * 1024];
+    private int head, tail; // next byte to read, next byte to write
+
+    final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) {
+            ensure(1);
+            buf[tail++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, tail, len);
+            tail += len;
+        }
+    };
+
+    final InputStream in = new InputStream() {
+        @Override
+        public int read() {
+            return head < tail ? buf[head++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (head == tail) return -1;
+
+            len = Math.min(len, tail-head);
+            System.arraycopy(buf, head, b, off, len);
+            head += len;
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return tail-head;
+        }
+    };
+
+
+    /* Methods */
+    int size() {
+        return tail-head;
+    }
+
+    private void ensure(int len) {
+        if (head == tail) head = tail = 0; // drained, start over
+        if (tail+len > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length*2, tail+len));
+    }
+}
@@ -0,0 +1,89 @@
+package com.yudakan.sttp.bench;
+
+import com.yudakan.sttp.Hash;
+import com.yudakan.sttp.Key;
+import com.yudakan.sttp.RandomSource;
+import com.yudakan.sttp.Tunnel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * PrimitivesBench Class
+ *
+ * Per chest work on its own: hash of a message fragment, XOR of a key
+ * over a chest half & generation of a new key, at the sizes a chest of
+ * bmpc bytes of message has with the default hash. The XOR kernel comes
+ * with the byte loop it replaced as a baseline.
+ *
+ * @author yka
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PrimitivesBench {
+
+    /* Attributes */
+    @Param({ "16", "512", "4096", "65536" })
+    public int bmpc;
+
+    private byte[] msgf, key, half, newKey;
+    private final RandomSource cached = RandomSource.cached();
+
+
+    /* Methods */
+    @Setup
+    public void setup() {
+        final int keyLen = bmpc + Hash.length();
+        final Random rand = new Random(0);
+
+        msgf = new byte[bmpc];
+        key = new byte[keyLen];
+        half = new byte[keyLen];
+        newKey = new byte[keyLen];
+        rand.nextBytes(msgf);
+        rand.nextBytes(key);
+        rand.nextBytes(half);
+    }
+
+    @Benchmark
+    public byte[] hashCreate() {
+        return Hash.create(msgf);
+    }
+
+    @Benchmark
+    public byte[] xor() {
+        Tunnel.xor(key, half);
+        return half;
+    }
+
+    @Benchmark
+    public byte[] xorByteLoop() { // Former Tunnel.xor
+        for (int i=0; i < key.length; i++)
+            half[i] ^= key[i];
+        return half;
+    }
+
+    @Benchmark
+    public byte[] keygenGenerate() {
+        Key.Keygen.generate(newKey, cached);
+        return newKey;
+    }
+}
@@ -0,0 +1,65 @@
+package com.yudakan.sttp.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * SocketSink Class
+ *
+ * Loopback connection whose peer only drains what it gets, so every
+ * flush of out is a real send: a system call & a TCP segment, unlike a
+ * flush of {@link MemoryPipe}.
+ *
+ * @author yka
+ * @version 1.0
+ */
+final class SocketSink implements AutoCloseable {
+
+    /* Attributes */
+    private final Socket socket, peer;
+    private final Thread drain;
+    final OutputStream out;
+
+
+    /* Constructors */
+    SocketSink() throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            peer = server.accept();
+        }
+        out = socket.getOutputStream();
+
+        drain = new Thread(() -> {
+            byte[] buf = new byte[64 * 1024];
+            try (InputStream in = peer.getInputStream()) {
+                while (in.read(buf) != -1);
+            }
+            catch (IOException e) {
+                // closed by close()
+            }
+        }, "sttp-bench-drain");
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+
+    /* Methods */
+    @Override
+    public void close() throws IOException {
+        socket.shutdownOutput();
+        try {
+            drain.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        socket.close();
+        peer.close();
+    }
+}
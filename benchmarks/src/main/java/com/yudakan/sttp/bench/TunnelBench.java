@@ -0,0 +1,144 @@
+package com.yudakan.sttp.bench;
+
+import com.yudakan.sttp.FlushPolicy;
+import com.yudakan.sttp.Key;
+import com.yudakan.sttp.RandomSource;
+import com.yudakan.sttp.Tunnel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelBench Class
+ *
+ * Tunnel.push & pull of one message over an in-memory pipe, for chests
+ * from 16 to 64k bytes of message. Push alone writes into a sink, the
+ * round trip pushes into the pipe and pulls back out of it with the
+ * peer tunnel. Bytes per second are msgLen times ops per second.
+ * Every tunnel flushes as the flush param says. A flush of the pipe costs
+ * nothing, so the push over a loopback socket is the one that compares
+ * flushing every chest with coalesced writes.
+ *
+ * @author yka
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TunnelBench {
+
+    /* Attributes */
+    @Param({ "16", "512", "4096", "65536" })
+    public int bmpc;
+
+    @Param({ "64", "1048576" })
+    public int msgLen;
+
+    @Param({ "perChest", "perMessage", "everyBytes" })
+    public String flush;
+
+    private byte[] msg, dst;
+    private MemoryPipe pipe;
+    private SocketSink socket;
+    private Tunnel sender, receiver, pusher, socketPusher;
+
+
+    /* Methods */
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        msg = new byte[msgLen];
+        dst = new byte[msgLen];
+        new Random(0).nextBytes(msg);
+
+        // Same initial keys on both ends, roles fixed by the first push & pull
+        RandomSource random = RandomSource.seeded(0);
+        Key apurochiKey = new Key.Keygen().setBmpc(bmpc).setRandom(random).build();
+        Key kyoriKey = new Key.Keygen().setBmpc(bmpc).setRandom(random).build();
+
+        final FlushPolicy policy = policy(flush);
+        pipe = new MemoryPipe();
+        sender = tunnel(pipe.in, pipe.out, apurochiKey, kyoriKey, policy, RandomSource.seeded(1));
+        receiver = tunnel(pipe.in, pipe.out, new Key(apurochiKey.toBytes()), new Key(kyoriKey.toBytes()), policy, RandomSource.seeded(2));
+        pusher = tunnel(InputStream.nullInputStream(), OutputStream.nullOutputStream(),
+                new Key(apurochiKey.toBytes()), new Key(kyoriKey.toBytes()), policy, RandomSource.seeded(3));
+
+        socket = new SocketSink();
+        socketPusher = tunnel(InputStream.nullInputStream(), socket.out,
+                new Key(apurochiKey.toBytes()), new Key(kyoriKey.toBytes()), policy, RandomSource.seeded(4));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        socket.close();
+        if (pipe.size() != 0)
+            throw new IllegalStateException("Pipe not drained, " + pipe.size() + " bytes left.");
+    }
+
+    @Benchmark
+    public boolean push() {
+        return check(pusher.push(msg, 0, msgLen));
+    }
+
+    @Benchmark
+    public boolean pushSocket() { // everyBytes leaves the tail buffered until later pushes fill it
+        return check(socketPusher.push(msg, 0, msgLen));
+    }
+
+    @Benchmark
+    public int roundTrip() {
+        check(sender.push(msg, 0, msgLen) && sender.flush()); // everyBytes keeps the tail otherwise
+        final int len = receiver.pull(dst, 0);
+        if (len != msgLen)
+            throw new IllegalStateException("Unable to pull message.");
+
+        return len;
+    }
+
+    private static Tunnel tunnel(InputStream in, OutputStream out, Key apurochiKey, Key kyoriKey, FlushPolicy policy, RandomSource random) throws IOException {
+        return new Tunnel.Builder()
+                .setIn(in)
+                .setOut(out)
+                .setApurochiKey(apurochiKey)
+                .setKyoriKey(kyoriKey)
+                .setFlushPolicy(policy)
+                .setRandom(random)
+                .build();
+    }
+
+    private static FlushPolicy policy(String name) {
+        switch (name) {
+            case "perChest":   return FlushPolicy.perChest();
+            case "perMessage": return FlushPolicy.perMessage();
+            case "everyBytes": return FlushPolicy.everyBytes(256 * 1024);
+            default: throw new IllegalArgumentException("Unknown flush policy " + name + '.');
+        }
+    }
+
+    private static boolean check(boolean pushed) {
+        if (!pushed)
+            throw new IllegalStateException("Unable to push message.");
+
+        return true;
+    }
+}
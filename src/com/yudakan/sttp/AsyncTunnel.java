@@ -0,0 +1,320 @@
+package com.yudakan.sttp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * AsyncTunnel Class
+ *
+ * Non-blocking push & pull over a {@link Tunnel}. Pushes go through two
+ * stages of one thread each: the encoder seals message N+1 into memory
+ * while the writer still puts message N on the wire, so sealing never
+ * waits on the socket. Futures complete in the order of the calls.
+ * Up to queue pushes and queue pulls wait at once, callers block beyond.
+ * Keys roll as messages are sealed, ahead of the wire: when a write
+ * fails, the push key goes back to the one of that message before keys
+ * are saved. Calls after close fail their future.
+ * Roles are fixed by the first call, as with Tunnel.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public final class AsyncTunnel implements Closeable {
+
+    /* Attributes */
+    public static final int DEFAULT_QUEUE = 64; // messages per direction
+    private final Tunnel tunnel;
+    private final OutputStream out;
+    private final Sealed sealed;
+    private final ExecutorService encoder, writer, reader;
+    private final Semaphore pushes, pulls; // free places in the queues
+    private final ReentrantLock sealing = new ReentrantLock(); // push key moves with one thread at a time
+    private volatile IOException failure; // a lost message breaks the key chain for every next one
+    private volatile boolean closed;
+
+
+    /* Constructors */
+    private AsyncTunnel(Builder builder) throws IOException {
+        this.out = builder.out;
+        this.sealed = new Sealed();
+        this.tunnel = builder.tunnel.setOut(sealed).setFlushPolicy(FlushPolicy.perMessage()).build();
+        this.pushes = new Semaphore(builder.queue);
+        this.pulls = new Semaphore(builder.queue);
+
+        this.encoder = Executors.newSingleThreadExecutor(TunnelRunner.threadFactory("sttp-async-encoder-", false));
+        this.writer = Executors.newSingleThreadExecutor(TunnelRunner.threadFactory("sttp-async-writer-", false));
+        this.reader = Executors.newSingleThreadExecutor(TunnelRunner.threadFactory("sttp-async-reader-", false));
+    }
+
+    public static class Builder {
+
+        /* Attributes */
+        private final Tunnel.Builder tunnel = new Tunnel.Builder();
+        private OutputStream out;
+        private int queue;
+
+
+        /* Constructors */
+        public Builder() {
+            queue = DEFAULT_QUEUE;
+        }
+
+
+        /* Methods */
+        public Builder setIn(InputStream in) {
+            tunnel.setIn(in);
+            return this;
+        }
+
+        public Builder setOut(OutputStream out) {
+            this.out = out;
+            return this;
+        }
+
+        public Builder setLink(TunnelLink link) {
+            tunnel.setIn(link.getInputStream());
+            this.out = link.getOutputStream();
+            return this;
+        }
+
+        public Builder setLog(OutputStream log) {
+            tunnel.setLog(log);
+            return this;
+        }
+
+        public Builder setApurochiKey(Key apurochiKey) {
+            tunnel.setApurochiKey(apurochiKey);
+            return this;
+        }
+
+        public Builder setKyoriKey(Key kyoriKey) {
+            tunnel.setKyoriKey(kyoriKey);
+            return this;
+        }
+
+        public Builder setRandom(RandomSource random) { // Source of new keys
+            tunnel.setRandom(random);
+            return this;
+        }
+
+        public Builder setParallel(ForkJoinPool pool) { // Hash chests in parallel, null means sequential
+            tunnel.setParallel(pool);
+            return this;
+        }
+
+        public Builder setMetrics(TunnelMetrics metrics) {
+            tunnel.setMetrics(metrics);
+            return this;
+        }
+
+        public Builder setCodec(Codec codec) {
+            tunnel.setCodec(codec);
+            return this;
+        }
+
+        public Builder setTrimTail(boolean trimTail) {
+            tunnel.setTrimTail(trimTail);
+            return this;
+        }
+
+        public Builder setChestSizing(ChestSizing sizing) {
+            tunnel.setChestSizing(sizing);
+            return this;
+        }
+
+        public Builder setQueue(int messages) throws IllegalArgumentException { // Pushes & pulls waiting, each
+            if (messages < 1)
+                throw new IllegalArgumentException("Queue must be a natural number.");
+
+            this.queue = messages;
+            return this;
+        }
+
+        public AsyncTunnel build() throws IllegalStateException, IOException {
+            if (out == null) out = System.out;
+
+            return new AsyncTunnel(this);
+        }
+    }
+
+    // Sealed bytes of one message, handed over without a copy
+    private static final class Sealed extends ByteArrayOutputStream {
+
+        byte[] take() {
+            byte[] wire = count == buf.length ? buf : toByteArray();
+            buf = new byte[Math.max(32, wire.length)];
+            count = 0;
+            return wire;
+        }
+    }
+
+
+    /* Methods */
+    public CompletableFuture<Void> pushAsync(byte[] msg) {
+        return pushAsync(msg, 0, msg.length);
+    }
+
+    // msg must not change until the future completes. Blocks while the queue is full
+    public CompletableFuture<Void> pushAsync(byte[] msg, int off, int len) {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        if (!acquire(pushes, done)) return done;
+        tunnel.sender();
+
+        try {
+            encoder.execute(() -> {
+                byte[] key = null, wire = null;
+                sealing.lock();
+                try {
+                    if (failure == null) {
+                        key = tunnel.getPushKey();
+                        wire = seal(msg, off, len);
+                    }
+                }
+                finally { sealing.unlock(); }
+
+                // Through the writer even on failure, so futures keep their order
+                final byte[] keyBefore = key, sealedWire = wire;
+                writer.execute(() -> write(sealedWire, keyBefore, done));
+            });
+        }
+        catch (RejectedExecutionException e) {
+            done.completeExceptionally(new IOException("Tunnel closed."));
+        }
+
+        done.whenComplete((v, e) -> pushes.release());
+        return done;
+    }
+
+    // Blocks while the queue is full
+    public CompletableFuture<byte[]> pullAsync() {
+        final CompletableFuture<byte[]> done = new CompletableFuture<>();
+        if (!acquire(pulls, done)) return done;
+        tunnel.receiver();
+
+        try {
+            reader.execute(new Pull(done));
+        }
+        catch (RejectedExecutionException e) {
+            done.completeExceptionally(new IOException("Tunnel closed."));
+        }
+
+        done.whenComplete((v, e) -> pulls.release());
+        return done;
+    }
+
+    private void write(byte[] wire, byte[] keyBefore, CompletableFuture<Void> done) {
+        if (wire == null || failure != null) {
+            done.completeExceptionally(failure != null ? failure : new IOException("Unable to seal message."));
+            return;
+        }
+
+        try {
+            out.write(wire);
+            out.flush();
+            done.complete(null);
+        }
+        catch (IOException e) {
+
+            // Messages sealed since never left: keys saved as the peer expects them
+            sealing.lock();
+            try {
+                if (failure == null) {
+                    failure = e;
+                    tunnel.setPushKey(keyBefore);
+                    tunnel.error("IOException when trying to send data in pushAsync method.", e);
+                }
+            }
+            finally { sealing.unlock(); }
+            done.completeExceptionally(e);
+        }
+    }
+
+    private boolean acquire(Semaphore places, CompletableFuture<?> done) {
+        if (closed) {
+            done.completeExceptionally(new IOException("Tunnel closed."));
+            return false;
+        }
+
+        try {
+            places.acquire();
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done.completeExceptionally(new InterruptedIOException("Interrupted while waiting for the queue."));
+            return false;
+        }
+    }
+
+    public boolean saveKeys() {
+        return tunnel.saveKeys();
+    }
+
+    // Waits for queued pushes, pulls still waiting for data fail
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        encoder.shutdown();
+        await(encoder);
+        writer.shutdown();
+        await(writer);
+        for (Runnable pull : reader.shutdownNow())
+            ((Pull)pull).done.completeExceptionally(new IOException("Tunnel closed."));
+
+        tunnel.close(true, false, false);
+        out.close();
+    }
+
+    private byte[] seal(byte[] msg, int off, int len) {
+        if (!tunnel.push(msg, off, len)) {
+            failure = new IOException("Unable to seal message.");
+            return null;
+        }
+
+        return sealed.take();
+    }
+
+    private final class Pull implements Runnable {
+
+        /* Attributes */
+        final CompletableFuture<byte[]> done;
+
+
+        /* Constructors */
+        Pull(CompletableFuture<byte[]> done) {
+            this.done = done;
+        }
+
+
+        /* Methods */
+        @Override
+        public void run() {
+            final byte[] msg = tunnel.pull();
+            if (msg != null) done.complete(msg);
+            else done.completeExceptionally(new IOException("Unable to pull message."));
+        }
+    }
+
+    private static void await(ExecutorService executor) {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
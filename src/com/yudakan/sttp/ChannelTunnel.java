@@ -0,0 +1,470 @@
+package com.yudakan.sttp;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * ChannelTunnel Class
+ *
+ * NIO version of {@link Tunnel}, same chests & plain headers so both can
+ * talk: a Tunnel peer must not use a codec, batches, trimmed tails, chest
+ * sizing nor messages over 2 GB, their tagged headers are refused. Chests
+ * are sealed in a direct buffer and sent with gathering writes of their
+ * hash/msgf/newKey segments. Full chests are received with scattering
+ * reads straight into the caller buffer and decrypted there.
+ * Files are sent from and received into memory-mapped windows, so their
+ * bytes never go through the heap.
+ * Channels are expected to be blocking.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public final class ChannelTunnel {
+
+    /* Attributes */
+    public static final int BATCH_SIZE = 64 * 1024; // bytes of chests per gathering write
+    public static final int FILE_WINDOW = 64 * 1024 * 1024; // bytes of file mapped per message
+    private ReadableByteChannel in;
+    private WritableByteChannel out;
+    private PrintStream log;
+    private Key apurochiKey, kyoriKey;
+    private Hash apurochiHash, kyoriHash;
+    private RandomSource random;
+
+    private final Role role = new Role();
+    private final ByteBuffer header = ByteBuffer.allocateDirect(4);
+    private boolean headerKept; // header read, its chests not yet: the next pull starts from it
+    private ByteBuffer pushChests, pushView;
+    private ByteBuffer[] pushSegments;
+    private byte[] pushHash, pushNewKey;
+    private ByteBuffer pullChest, pullView;
+    private ByteBuffer[] pullSegments;
+    private byte[] pullHash;
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("dd.MM.yyyy 'at' HH:mm:ss");
+
+
+    /* Constructors */
+    private ChannelTunnel() {}
+
+    private ChannelTunnel(Builder builder) {
+        this.in = builder.in;
+        this.out = builder.out;
+        this.log = builder.log;
+        this.apurochiKey = builder.apurochiKey;
+        this.kyoriKey = builder.kyoriKey;
+        this.apurochiHash = new Hash(apurochiKey.getAlgorithm());
+        this.kyoriHash = new Hash(kyoriKey.getAlgorithm());
+        this.random = builder.random;
+    }
+
+    public static class Builder {
+
+        /* Attributes */
+        private ReadableByteChannel in;
+        private WritableByteChannel out;
+        private PrintStream log;
+        private Key apurochiKey, kyoriKey;
+        private RandomSource random;
+
+
+        /* Constructors */
+        public Builder() {}
+
+
+        /* Methods */
+        public Builder setIn(ReadableByteChannel in) {
+            this.in = in;
+            return this;
+        }
+
+        public Builder setOut(WritableByteChannel out) {
+            this.out = out;
+            return this;
+        }
+
+        public Builder setLog(OutputStream log) {
+            this.log = new PrintStream(log, true);
+            return this;
+        }
+
+        public Builder setApurochiKey(Key apurochiKey) {
+            this.apurochiKey = apurochiKey;
+            return this;
+        }
+
+        public Builder setKyoriKey(Key kyoriKey) {
+            this.kyoriKey = kyoriKey;
+            return this;
+        }
+
+        public Builder setRandom(RandomSource random) { // Source of new keys
+            this.random = random;
+            return this;
+        }
+
+        public ChannelTunnel build() throws IllegalStateException, IOException {
+            if (in == null || out == null)
+                throw new IllegalStateException("Channels not specified.");
+
+            try {
+                if (log == null)          log = new PrintStream(System.err, true);
+                if (apurochiKey == null)  apurochiKey = new Key(new File(Key.DEFAULT_PATH_APUROCHIKEY));
+                if (kyoriKey == null)     kyoriKey = new Key(new File(Key.DEFAULT_PATH_KYORIKEY));
+                if (random == null)       random = RandomSource.cached();
+
+                return new ChannelTunnel(this);
+            }
+            catch (FileNotFoundException e) {
+                throw new IllegalStateException("There are no keys created in default directory.");
+            }
+        }
+    }
+
+
+    /* Methods */
+    public boolean push(ByteBuffer src) { // Send src remaining bytes, src position ends at its limit
+
+        // Who am I?
+        role.sender();
+
+        // Vars
+        final int msgLen = src.remaining();
+        final int msgfLen = apurochiKey.getMsgfLen();
+        final int nChests = (int)Math.ceil( (double)msgLen / msgfLen );
+        final int batchChests = Math.max(1, BATCH_SIZE / apurochiKey.getChestSize());
+
+        // Send header --> msgLen
+        try {
+            header.clear();
+            header.putInt(msgLen).flip();
+            writeFully(header);
+        }
+        catch (IOException e) {
+            error("IOException when trying to send header in push method.", e, 0, nChests, 0, msgLen);
+            return false;
+        }
+
+        // Any Chest //
+        // i -> count chests
+        // k -> count bytes of message per whole message
+        for (int i=0, k=0; i < nChests; ) {
+            final int c = Math.min(batchChests, nChests-i);
+
+            for (int j=0; j < c; j++, k += msgfLen)
+                sealChest(src, j, Math.min(msgfLen, msgLen-k));
+
+            try {
+                writeFully(c);
+                i += c;
+            }
+            catch (IOException e) {
+                error("IOException when trying to send data in push method.", e, i, nChests, Math.min(k, msgLen), msgLen);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public int pull(ByteBuffer dst) { // Receive message at dst position, returns its length or -1. A too small dst leaves it for the next pull
+
+        // Who am I?
+        if (role.receiver()) {
+            Key tempKey = apurochiKey;
+            apurochiKey = kyoriKey;
+            kyoriKey = tempKey;
+
+            Hash tempHash = apurochiHash;
+            apurochiHash = kyoriHash;
+            kyoriHash = tempHash;
+        }
+
+        // Get header --> msgLen
+        final int msgLen;
+        try {
+            if (!headerKept) {
+                header.clear();
+                readFully(header);
+            }
+            msgLen = header.getInt(0);
+            headerKept = false;
+        }
+        catch (IOException e) {
+            error("IOException when trying to get header in pull method.", e, 0, 0, 0, 0);
+            return -1;
+        }
+
+        // Nothing pulled nor saved, the header waits for the next pull
+        if (msgLen < 0) {
+            headerKept = true;
+            warn("Tagged header in pull method, only plain ones are taken.");
+            return -1;
+        }
+        if (msgLen > dst.remaining()) {
+            headerKept = true;
+            warn("Destination too small in pull method, " + msgLen + " bytes needed.");
+            return -1;
+        }
+
+        // Vars
+        final int msgfLen = kyoriKey.getMsgfLen();
+        final int nChests = (int)Math.ceil( (double)msgLen / msgfLen );
+        final ByteBuffer view = dst.duplicate();
+
+        // Any Chest //
+        // i -> count chests
+        // k -> count bytes of message per whole message
+        for (int i=0, k=0; i < nChests; i++) {
+            final int n = Math.min(msgfLen, msgLen-k);
+
+            try {
+                if (!openChest(view, dst.position()+k, n)) {
+                    error("Hash error: Corrupted Integrity or Wrong Key.", null, i, nChests, k, msgLen);
+                    return -1;
+                }
+                k += n;
+            }
+            catch (IOException e) {
+                error("IOException when trying to receive data in pull method.", e, i, nChests, k, msgLen);
+                return -1;
+            }
+        }
+
+        dst.position(dst.position()+msgLen);
+        return msgLen;
+    }
+
+    // File as [ length (8 bytes) ] & one message per mapped window, false on error
+    public boolean pushFile(Path file) {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = fc.size();
+            if (!push(ByteBuffer.allocate(8).putLong(0, size))) return false;
+
+            // Windows of whole chests, no padding but in the last one
+            final int msgfLen = apurochiKey.getMsgfLen();
+            final long window = Math.max(1, FILE_WINDOW / msgfLen) * (long)msgfLen;
+
+            for (long pos=0; pos < size; pos += window) {
+                MappedByteBuffer src = fc.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(window, size-pos));
+                if (!push(src)) return false;
+            }
+
+            return true;
+        }
+        catch (IOException e) {
+            error("IOException when trying to map file in pushFile method.", e, 0, 0, 0, 0);
+            return false;
+        }
+    }
+
+    // File pushed by pushFile, replaces file. Returns its length or -1
+    public long pullFile(Path file) {
+        final ByteBuffer length = ByteBuffer.allocate(8);
+        if (pull(length) != 8) return -1;
+
+        final long size = length.getLong(0);
+        if (size < 0) {
+            error("Wrong file length in pullFile method.", null, 0, 0, 0, 0);
+            return -1;
+        }
+
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            // Chests decrypted straight into the mapped file, window never beyond file length
+            for (long pos=0; pos < size; ) {
+                MappedByteBuffer dst = fc.map(FileChannel.MapMode.READ_WRITE, pos, Math.min(FILE_WINDOW, size-pos));
+                final int n = pull(dst);
+                if (n <= 0) return -1;
+
+                dst.force();
+                pos += n;
+            }
+
+            return size;
+        }
+        catch (IOException e) {
+            error("IOException when trying to map file in pullFile method.", e, 0, 0, 0, 0);
+            return -1;
+        }
+    }
+
+    // Chest level
+    private void sealChest(ByteBuffer src, int j, int len) {
+        final int hashLen = apurochiKey.getHashLength();
+        final int msgfLen = apurochiKey.getMsgfLen();
+        final int keyLen = apurochiKey.getLength();
+        final int base = j*apurochiKey.getChestSize();
+        final byte[] key = apurochiKey.getKey_ByRef();
+
+        if (pushChests == null || pushNewKey.length != keyLen) {
+            final int batchChests = Math.max(1, BATCH_SIZE / apurochiKey.getChestSize());
+
+            pushChests = ByteBuffer.allocateDirect(batchChests*apurochiKey.getChestSize());
+            pushView = pushChests.duplicate();
+            pushSegments = new ByteBuffer[batchChests*3];
+            for (int i=0; i < pushSegments.length; i++) pushSegments[i] = pushChests.duplicate();
+            pushHash = new byte[hashLen];
+            pushNewKey = new byte[keyLen];
+        }
+
+        // Get piece of msg, last chest keeps the tail of the previous one as padding
+        pushChests.put(base+hashLen, src, src.position(), len);
+        src.position(src.position()+len);
+
+        // Generate hash & new key
+        pushView.limit(base+keyLen).position(base+hashLen);
+        apurochiHash.digest(pushView, pushHash, 0);
+        pushChests.put(base, pushHash);
+        random.nextBytes(pushNewKey);
+        pushChests.put(base+keyLen, pushNewKey);
+
+        // Encrypt
+        Xor.xor(key, 0, pushChests, base, keyLen);
+        Xor.xor(key, 0, pushChests, base+keyLen, keyLen);
+
+        // Update actual key
+        System.arraycopy(pushNewKey, 0, key, 0, keyLen);
+
+        // Segments to gather
+        pushSegments[j*3].limit(base+hashLen).position(base);
+        pushSegments[j*3+1].limit(base+keyLen).position(base+hashLen);
+        pushSegments[j*3+2].limit(base+2*keyLen).position(base+keyLen);
+    }
+
+    private boolean openChest(ByteBuffer dst, int index, int len) throws IOException {
+        final int hashLen = kyoriKey.getHashLength();
+        final int msgfLen = kyoriKey.getMsgfLen();
+        final int keyLen = kyoriKey.getLength();
+        final byte[] key = kyoriKey.getKey_ByRef();
+        final boolean inPlace = len == msgfLen; // full chest, fragment read & decrypted in dst
+
+        if (pullChest == null || pullChest.capacity() != kyoriKey.getChestSize()) {
+            pullChest = ByteBuffer.allocateDirect(kyoriKey.getChestSize());
+            pullView = pullChest.duplicate();
+            pullSegments = new ByteBuffer[] { pullChest.duplicate(), null, pullChest.duplicate() };
+            pullHash = new byte[hashLen];
+        }
+
+        // Receive
+        if (inPlace) {
+            pullSegments[0].limit(hashLen).position(0);
+            pullSegments[1] = dst.limit(index+msgfLen).position(index);
+            pullSegments[2].limit(2*keyLen).position(keyLen);
+            readFully(pullSegments);
+        }
+        else {
+            pullChest.clear();
+            readFully(pullChest);
+        }
+
+        // Decrypt
+        Xor.xor(key, 0, pullChest, 0, hashLen);
+        if (inPlace) Xor.xor(key, hashLen, dst, index, msgfLen);
+        else         Xor.xor(key, hashLen, pullChest, hashLen, msgfLen);
+        Xor.xor(key, 0, pullChest, keyLen, keyLen);
+
+        // Check integrity
+        pullChest.get(0, pullHash);
+        final ByteBuffer msgf = inPlace ? dst.limit(index+msgfLen).position(index) : pullView.limit(keyLen).position(hashLen);
+        if (!kyoriHash.verify(msgf, pullHash, 0))
+            return false;
+
+        // Update key
+        pullChest.get(keyLen, key);
+
+        // Building msg...
+        if (!inPlace) dst.limit(index+len).put(index, pullChest, hashLen, len);
+
+        return true;
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) out.write(buf);
+    }
+
+    private void writeFully(int nChests) throws IOException {
+        final ByteBuffer last = pushSegments[nChests*3-1];
+
+        if (out instanceof GatheringByteChannel) {
+            while (last.hasRemaining())
+                ((GatheringByteChannel)out).write(pushSegments, 0, nChests*3);
+        }
+        else for (int i=0; i < nChests*3; i++)
+            writeFully(pushSegments[i]);
+    }
+
+    private void readFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            if (in.read(buf) == -1) throw new EOFException();
+    }
+
+    private void readFully(ByteBuffer[] bufs) throws IOException {
+        final ByteBuffer last = bufs[bufs.length-1];
+
+        if (in instanceof ScatteringByteChannel) {
+            while (last.hasRemaining())
+                if (((ScatteringByteChannel)in).read(bufs) == -1) throw new EOFException();
+        }
+        else for (ByteBuffer buf : bufs)
+            readFully(buf);
+    }
+
+    // Keys
+    public boolean saveKeys() {
+        try {
+            role.pack(apurochiKey, kyoriKey);
+            return true;
+        }
+        catch (IOException e) { return false; }
+    }
+
+    public boolean close() { // Close channels & save keys
+        try {
+            saveKeys();
+
+            in.close();
+            out.close();
+            log.close();
+
+            return true;
+        }
+        catch (IOException e) { return false; }
+    }
+
+    private void error(String issue, Exception e, int i, int nChests, int k, int msgLen) {
+        log.println("------------------------------------------------------------");
+        log.println(issue);
+        log.println("Time:              " + TIME.format(LocalDateTime.now()));
+        log.println("Actual keys saved: " + (saveKeys() ? "Yes" : "No"));
+        log.println("Actual chests:     " + (i+1) + '/' + nChests);
+        log.println("Actual bytes msg:  " + (k+1) + '/' + msgLen);
+        log.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+        if (e != null) e.printStackTrace(log);
+    }
+
+    private void warn(String issue) { // Nothing pulled, the message waits for the next pull
+        log.println("------------------------------------------------------------");
+        log.println(issue);
+        log.println("Time:              " + TIME.format(LocalDateTime.now()));
+        log.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+    }
+}
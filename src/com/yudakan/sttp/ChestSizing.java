@@ -0,0 +1,165 @@
+package com.yudakan.sttp;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * ChestSizing Class
+ *
+ * Picks the bytes of message per chest of the key a {@link Tunnel} pushes
+ * with, from the messages it sent lately. Small messages want small
+ * chests, padding and key material are wasted otherwise; big ones want
+ * big chests, a hash & a keygen less per byte. Every window messages the
+ * chest goes to the power of two that fits their mean length, between min
+ * and max & at most 4 times wider per step. A growth that lowered the
+ * throughput is undone and not tried again for 8 windows or until
+ * messages shrink.
+ * The tunnel tells the peer in band, see {@link Tunnel#RESIZE_HEADER}.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public final class ChestSizing {
+
+    /* Attributes */
+    public static final int DEFAULT_MIN_BMPC = 16;
+    public static final int DEFAULT_MAX_BMPC = 64 * 1024;
+    public static final int DEFAULT_WINDOW = 32;
+    static final int MAX_BMPC = 1 << 24; // widest chest a peer takes
+    private static final int MAX_GROWTH = 4;
+    private static final double MIN_KEPT = 0.8; // throughput a growth keeps to stay, below it was more than noise
+    private static final int CEILING_WINDOWS = 8;
+
+    private final int min, max, window;
+
+
+    /* Constructors */
+    private ChestSizing(Builder builder) {
+        this.min = builder.min;
+        this.max = builder.max;
+        this.window = builder.window;
+    }
+
+    public static class Builder {
+
+        /* Attributes */
+        private int min, max, window;
+
+
+        /* Constructors */
+        public Builder() {
+            min = DEFAULT_MIN_BMPC;
+            max = DEFAULT_MAX_BMPC;
+            window = DEFAULT_WINDOW;
+        }
+
+
+        /* Methods */
+        public Builder setMinBmpc(int min) throws IllegalArgumentException { // Bytes of message per chest
+            if (min < 1)
+                throw new IllegalArgumentException("Bytes of message per chest must be a natural number.");
+
+            this.min = min;
+            return this;
+        }
+
+        public Builder setMaxBmpc(int max) throws IllegalArgumentException {
+            if (max < 1 || max > MAX_BMPC)
+                throw new IllegalArgumentException("Bytes of message per chest go from 1 to " + MAX_BMPC + '.');
+
+            this.max = max;
+            return this;
+        }
+
+        public Builder setWindow(int messages) throws IllegalArgumentException { // Messages between two choices
+            if (messages < 1)
+                throw new IllegalArgumentException("Window must be a natural number.");
+
+            this.window = messages;
+            return this;
+        }
+
+        public ChestSizing build() throws IllegalStateException {
+            if (min > max)
+                throw new IllegalStateException("Min bytes per chest above max.");
+
+            return new ChestSizing(this);
+        }
+    }
+
+
+    /* Getters */
+    public int getMinBmpc() {
+        return min;
+    }
+
+    public int getMaxBmpc() {
+        return max;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    @Override
+    public String toString() {
+        return "chests of " + min + " to " + max + " bytes, every " + window + " messages";
+    }
+
+
+    /* Methods */
+    State state() { // One per tunnel
+        return new State();
+    }
+
+    final class State {
+
+        /* Attributes */
+        private int messages;
+        private long bytes, nanos;
+        private int ceiling = max, ceilingWindows; // windows left until ceiling goes back to max
+        private int grownFrom = -1; // bmpc before the last growth, until it is judged
+        private double grownFromThroughput;
+
+
+        /* Methods */
+        // Bmpc for the next messages after one of len bytes sent in nanos, -1 to keep msgfLen
+        int next(int msgfLen, long len, long nanos) {
+            this.messages++;
+            this.bytes += len;
+            this.nanos += nanos;
+            if (messages < window) return -1;
+
+            final long mean = bytes / messages;
+            final double throughput = (double)bytes / Math.max(1, this.nanos);
+            messages = 0;
+            bytes = this.nanos = 0;
+
+            int target = (int)Math.max(min, Math.min(max, ceilPow2(mean)));
+            final int from = grownFrom;
+            grownFrom = -1;
+            if (ceilingWindows > 0 && --ceilingWindows == 0) ceiling = max;
+
+            // Smaller messages, any chest may pay again. Same ones, but the last growth made it slower: back & no higher for a while
+            if (target < msgfLen) ceiling = max;
+            else if (from != -1 && throughput < grownFromThroughput * MIN_KEPT) {
+                ceiling = from;
+                ceilingWindows = CEILING_WINDOWS;
+                return from;
+            }
+            target = (int)Math.min(target, Math.min(ceiling, (long)msgfLen*MAX_GROWTH));
+
+            // Chests at least half full aren't worth a resize
+            if (target == msgfLen || target < msgfLen && target*2L >= msgfLen && msgfLen <= max) return -1;
+
+            if (target > msgfLen) {
+                grownFrom = msgfLen;
+                grownFromThroughput = throughput;
+            }
+            return target;
+        }
+
+        private long ceilPow2(long n) {
+            return n <= 1 ? 1 : Long.highestOneBit(n-1) << 1;
+        }
+    }
+}
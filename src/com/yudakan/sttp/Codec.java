@@ -0,0 +1,108 @@
+package com.yudakan.sttp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * Codec Interface
+ *
+ * Compression of a message before it is split into chests. Every byte
+ * saved is key material, a hash & a keygen less per chest, and bytes
+ * less on the wire. The header tells its id to the peer, which needs a
+ * codec of the same id to read it, deflate is always known.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public interface Codec {
+
+    /* Attributes */
+    int DEFLATE_ID = 1;
+
+
+    /* Methods */
+    int getId(); // 1 to 255, same on both peers
+
+    // Packs len bytes of src into dst, returns packed length or -1 if they don't fit in dst
+    int compress(byte[] src, int off, int len, byte[] dst);
+
+    // Stream unpacking what is written into dst, close() ends the message & leaves dst open
+    OutputStream decompress(OutputStream dst);
+
+    static Codec deflate() {
+        return Deflate.DEFAULT;
+    }
+
+    static Codec deflate(int level) throws IllegalArgumentException { // 1 fastest to 9 smallest
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Deflate level goes from 1 to 9.");
+
+        return new Deflate(level);
+    }
+
+    final class Deflate implements Codec {
+
+        /* Attributes */
+        private static final Deflate DEFAULT = new Deflate(Deflater.BEST_SPEED);
+
+        private final int level;
+        private final ThreadLocal<Deflater> deflater;
+        private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+
+
+        /* Constructors */
+        private Deflate(int level) {
+            this.level = level;
+            this.deflater = ThreadLocal.withInitial(() -> new Deflater(level));
+        }
+
+
+        /* Getters */
+        @Override
+        public int getId() {
+            return DEFLATE_ID;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+
+        /* Methods */
+        @Override
+        public int compress(byte[] src, int off, int len, byte[] dst) {
+            final Deflater d = deflater.get();
+            d.reset();
+            d.setInput(src, off, len);
+            d.finish();
+
+            final int n = d.deflate(dst, 0, dst.length);
+            return d.finished() ? n : -1;
+        }
+
+        @Override
+        public OutputStream decompress(OutputStream dst) {
+            final Inflater i = inflater.get();
+            i.reset();
+
+            return new InflaterOutputStream(dst, i, 8 * 1024) {
+                @Override
+                public void close() throws IOException {
+                    finish();
+                    if (!i.finished())
+                        throw new IOException("Deflate stream ended too soon.");
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "deflate " + level;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.yudakan.sttp;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * FlushPolicy Class
+ *
+ * Tells a {@link Tunnel} when the encrypted chests collected in its write
+ * buffer are handed to the underlying stream.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public final class FlushPolicy {
+
+    /* Attributes */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final FlushPolicy PER_CHEST = new FlushPolicy(Mode.CHEST, 0);
+    private static final FlushPolicy PER_MESSAGE = new FlushPolicy(Mode.MESSAGE, DEFAULT_BUFFER_SIZE);
+
+    enum Mode { CHEST, MESSAGE, BYTES }
+
+    private final Mode mode;
+    private final int bufferSize;
+
+
+    /* Constructors */
+    private FlushPolicy(Mode mode, int bufferSize) {
+        this.mode = mode;
+        this.bufferSize = bufferSize;
+    }
+
+    // Every chest goes out as soon as it is encrypted, for interactive use
+    public static FlushPolicy perChest() {
+        return PER_CHEST;
+    }
+
+    // Chests are coalesced and flushed at the end of every message
+    public static FlushPolicy perMessage() {
+        return PER_MESSAGE;
+    }
+
+    public static FlushPolicy perMessage(int bufferSize) throws IllegalArgumentException {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("Buffer size must be a natural number.");
+
+        return new FlushPolicy(Mode.MESSAGE, bufferSize);
+    }
+
+    // Chests are written every n bytes, the tail waits for more data or Tunnel.flush()
+    public static FlushPolicy everyBytes(int n) throws IllegalArgumentException {
+        if (n < 1)
+            throw new IllegalArgumentException("Flush threshold must be a natural number.");
+
+        return new FlushPolicy(Mode.BYTES, n);
+    }
+
+
+    /* Getters */
+    Mode getMode() {
+        return mode;
+    }
+
+    int getBufferSize(int chestSize) {
+        return Math.max(bufferSize, chestSize);
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+            case CHEST:   return "perChest";
+            case MESSAGE: return "perMessage(" + bufferSize + ')';
+            default:      return "everyBytes(" + bufferSize + ')';
+        }
+    }
+}
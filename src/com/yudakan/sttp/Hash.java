@@ -1,45 +1,192 @@
 package com.yudakan.sttp;
 
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 /**
  * -- STTP --
  * Sequential Two Times Pad
  * Hash Class
  *
+ * A Hash instance is not thread-safe, use one per tunnel or the one of
+ * the current thread through {@link #local(Algorithm)}. Digests can be
+ * written straight into caller buffers so no garbage is made per chest.
+ *
  * @author yka
  * @version 1.0
  */
 public class Hash {
 
     /* Attributes */
-    private static MessageDigest md;
-    private static int len;
+    private static final ThreadLocal<Hash[]> local = ThreadLocal.withInitial(() -> new Hash[Algorithm.MAX_ID+1]);
 
-    static {
-        try {
-            md = MessageDigest.getInstance("SHA-256");
-            len = 32;
+    private final Algorithm algorithm;
+    private final MessageDigest md;
+    private final byte[] full;    // whole digest, when algorithm truncates it
+    private final byte[] scratch; // digest to verify against
+
+
+    /* Constructors */
+    public Hash() {
+        this(Algorithm.DEFAULT);
+    }
+
+    public Hash(Algorithm algorithm) {
+        this.algorithm = algorithm;
+        this.md = algorithm.newDigest();
+        this.full = algorithm.digestLength != algorithm.length ? new byte[algorithm.digestLength] : null;
+        this.scratch = new byte[algorithm.length];
+    }
+
+    public static final class Algorithm {
+
+        /* Attributes */
+        static final int MAX_ID = 255;
+        private static final Algorithm[] registry = new Algorithm[MAX_ID+1];
+
+        public static final Algorithm SHA_256         = register(1, "SHA-256", 32);
+        public static final Algorithm SHA_512_256     = register(2, "SHA-512/256", 32); // faster on 64 bits
+        public static final Algorithm SHA_256_128     = register(3, "SHA-256", 16);
+        public static final Algorithm SHA_512_256_128 = register(4, "SHA-512/256", 16);
+        public static final Algorithm DEFAULT         = SHA_256;
+
+        private final int id, length, digestLength;
+        private final String digest;
+
+
+        /* Constructors */
+        private Algorithm(int id, String digest, int length) {
+            this.id = id;
+            this.digest = digest;
+            this.length = length;
+            this.digestLength = newDigest().getDigestLength();
         }
-        catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException(e.getMessage());
+
+
+        /* Getters */
+        public int getId() {
+            return id;
         }
-    }
 
+        public String getDigest() {
+            return digest;
+        }
 
-    /* Constructors */
-    private Hash() {}
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return digest + (digestLength != length ? "/" + length*8 : "");
+        }
+
+
+        /* Methods */
+        // New integrity function, id is recorded with every key that uses it
+        public static synchronized Algorithm register(int id, String digest, int length) throws IllegalArgumentException {
+            if (id < 1 || id > MAX_ID)
+                throw new IllegalArgumentException("Algorithm id must be between 1 and " + MAX_ID + '.');
+            if (registry[id] != null)
+                throw new IllegalArgumentException("Algorithm id " + id + " already registered.");
+
+            Algorithm algorithm = new Algorithm(id, digest, length);
+            if (length < 1 || length > algorithm.digestLength)
+                throw new IllegalArgumentException("Hash length out of digest bounds.");
+
+            registry[id] = algorithm;
+            return algorithm;
+        }
+
+        public static Algorithm forId(int id) throws IllegalArgumentException {
+            Algorithm algorithm = id >= 0 && id <= MAX_ID ? registry[id] : null;
+            if (algorithm == null)
+                throw new IllegalArgumentException("Unknown hash algorithm " + id + '.');
+
+            return algorithm;
+        }
+
+        private MessageDigest newDigest() {
+            try {
+                return MessageDigest.getInstance(digest);
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+    }
 
 
     /* Getters */
-    public static int length() {
-        return len;
+    public static int length() { // Length of default algorithm
+        return Algorithm.DEFAULT.length;
+    }
+
+    public int getLength() {
+        return algorithm.length;
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public static Hash local() { // Hash of current thread
+        return local(Algorithm.DEFAULT);
+    }
+
+    public static Hash local(Algorithm algorithm) {
+        Hash[] hashes = local.get();
+        if (hashes[algorithm.id] == null) hashes[algorithm.id] = new Hash(algorithm);
+
+        return hashes[algorithm.id];
     }
 
 
     /* Methods */
+    public void digest(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        md.update(src, off, len);
+        finish(dst, dstOff);
+    }
+
+    public boolean verify(byte[] src, int off, int len, byte[] hash, int hashOff) {
+        digest(src, off, len, scratch, 0);
+        return Arrays.equals(scratch, 0, scratch.length, hash, hashOff, hashOff+scratch.length);
+    }
+
+    // Digest of src remaining bytes, src position ends at its limit
+    public void digest(ByteBuffer src, byte[] dst, int dstOff) {
+        md.update(src);
+        finish(dst, dstOff);
+    }
+
+    public boolean verify(ByteBuffer src, byte[] hash, int hashOff) {
+        digest(src, scratch, 0);
+        return Arrays.equals(scratch, 0, scratch.length, hash, hashOff, hashOff+scratch.length);
+    }
+
+    private void finish(byte[] dst, int dstOff) {
+        try {
+            if (full == null) md.digest(dst, dstOff, algorithm.length);
+            else {
+                md.digest(full, 0, full.length);
+                System.arraycopy(full, 0, dst, dstOff, algorithm.length);
+            }
+        }
+        catch (DigestException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
     public static byte[] create(byte[] src) {
-        return md.digest(src);
+        return create(src, 0, src.length);
+    }
+
+    public static byte[] create(byte[] src, int off, int len) {
+        byte[] hash = new byte[length()];
+        local().digest(src, off, len, hash, 0);
+        return hash;
     }
-}
\ No newline at end of file
+}
@@ -4,7 +4,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.security.SecureRandom;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 
 /**
  * -- STTP --
@@ -19,9 +21,13 @@ public final class Key {
     /* Attributes */
     public static final String DEFAULT_PATH_APUROCHIKEY = "./.packetKeys/apurochiKey";
     public static final String DEFAULT_PATH_KYORIKEY = "./.packetKeys/kyoriKey";
+    private static final byte[] MAGIC = {'S', 'T', 'T', 'P'};
+    private static final byte VERSION = 1;
+    private static final int HEADER_LEN = MAGIC.length + 2; // magic, version & hash algorithm id
     private int chestSize, msgfLen; // bytes of message per chest
     private byte[] key;
     private File keyFile;
+    private Hash.Algorithm algorithm;
 
 
     /* Constructors */
@@ -30,20 +36,28 @@ public final class Key {
     public Key(File f) throws IllegalStateException, IOException {
         if (f.length() > Integer.MAX_VALUE)
             throw new IllegalStateException("Key File too big.");
-        if (f.length() < Hash.length()+1)
-            throw new IllegalStateException("Key File too small.");
 
-        key = loadBytesAs(f);
-        chestSize = key.length*2;
-        msgfLen = key.length-Hash.length();
+        parse(loadBytesAs(f));
         keyFile = f;
     }
 
+    public Key(byte[] bytes) throws IllegalStateException { // Key File content, no Key File attached
+        parse(bytes.clone());
+    }
+
+    Key(byte[] key, Hash.Algorithm algorithm) { // Bare key bytes, taken by reference
+        this.key = key;
+        this.algorithm = algorithm;
+        this.chestSize = key.length*2;
+        this.msgfLen = key.length-algorithm.getLength();
+    }
+
     private Key(Keygen keygen) {
         this.chestSize = keygen.chestSize;
         this.msgfLen = keygen.msgfLen;
         this.key = keygen.key;
         this.keyFile = keygen.keyFile;
+        this.algorithm = keygen.algorithm;
     }
 
     public static class Keygen {
@@ -52,24 +66,28 @@ public final class Key {
         private int chestSize, msgfLen;
         private byte[] key;
         private File keyFile;
+        private Hash.Algorithm algorithm;
+        private RandomSource random;
 
 
         /* Constructors */
         public Keygen() {
+            algorithm = Hash.Algorithm.DEFAULT;
+            random = RandomSource.cached();
             msgfLen = 512;
-            chestSize = (msgfLen+Hash.length()) * 2;
+            chestSize = (msgfLen+algorithm.getLength()) * 2;
         }
 
 
         /* Methods */
         public Keygen setChestSize(int chestSize) throws IllegalArgumentException {
-            if (chestSize < (1+Hash.length())*2)
+            if (chestSize < (1+algorithm.getLength())*2)
                 throw new IllegalArgumentException("Chest Size too small.");
             if (chestSize % 2 != 0)
                 throw new IllegalArgumentException("Chest Size must be even.");
 
             this.chestSize = chestSize;
-            msgfLen = chestSize/2 - Hash.length();
+            msgfLen = chestSize/2 - algorithm.getLength();
 
             return this;
         }
@@ -79,7 +97,7 @@ public final class Key {
                 throw new IllegalArgumentException("Bytes Of Message Per Chest must be a natural number.");
 
             this.msgfLen = msgfLen;
-            chestSize = (msgfLen + Hash.length()) * 2;
+            chestSize = (msgfLen + algorithm.getLength()) * 2;
 
             return this;
         }
@@ -90,29 +108,39 @@ public final class Key {
         }
 
         public Keygen setLength(int len) throws IllegalArgumentException {
-            if (len < 1+Hash.length())
+            if (len < 1+algorithm.getLength())
                 throw new IllegalArgumentException("Key size too small.");
 
             chestSize = len*2;
-            msgfLen = len - Hash.length();
+            msgfLen = len - algorithm.getLength();
+
+            return this;
+        }
+
+        public Keygen setAlgorithm(Hash.Algorithm algorithm) { // Keeps bytes of message per chest
+            this.algorithm = algorithm;
+            chestSize = (msgfLen + algorithm.getLength()) * 2;
+
+            return this;
+        }
 
+        public Keygen setRandom(RandomSource random) {
+            this.random = random;
             return this;
         }
 
         public Key build() {
             key = new byte[chestSize/2];
-            generate(key);
+            generate(key, random);
             return new Key(this);
         }
 
         public static void generate(byte[] key) {
-            try {
-                SecureRandom rand = SecureRandom.getInstance("SHA1PRNG", "SUN");
-                rand.nextBytes(key);
-            }
-            catch (Exception e) {
-                throw new IllegalStateException(e.getMessage());
-            }
+            generate(key, RandomSource.cached());
+        }
+
+        public static void generate(byte[] key, RandomSource random) {
+            random.nextBytes(key);
         }
     }
 
@@ -130,6 +158,14 @@ public final class Key {
         return key.length;
     }
 
+    public Hash.Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getHashLength() {
+        return algorithm.getLength();
+    }
+
     public byte[] getKey() {
         return key.clone();
     }
@@ -138,6 +174,22 @@ public final class Key {
         return key;
     }
 
+    // Key of length bytes from now on: the actual one cut, or followed by extra
+    void resize(int length, byte[] extra) {
+        final byte[] next = Arrays.copyOf(key, length);
+        if (length > key.length) System.arraycopy(extra, 0, next, key.length, length-key.length);
+
+        key = next;
+        chestSize = length*2;
+        msgfLen = length-algorithm.getLength();
+    }
+
+    void restore(byte[] key) { // Key back to an earlier copy of itself, resized or not
+        this.key = key;
+        chestSize = key.length*2;
+        msgfLen = key.length-algorithm.getLength();
+    }
+
     public File getKeyFile() {
         return keyFile;
     }
@@ -165,10 +217,20 @@ public final class Key {
         return key;
     }
 
-    public static void saveBytesAs(byte[] bytes, File f) throws IOException {
-        FileOutputStream out = new FileOutputStream(f);
-        out.write(bytes);
-        out.close();
+    public static void saveBytesAs(byte[] bytes, File f) throws IOException { // Old or new content after a crash, never half
+        File tmp = File.createTempFile(f.getName() + ".key.", ".tmp", f.getAbsoluteFile().getParentFile()); // one per writer
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(bytes);
+                out.getFD().sync();
+            }
+
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException | RuntimeException e) { // No key bytes left behind in a stray file
+            tmp.delete();
+            throw e;
+        }
     }
 
     public static void pack(Key apurochiKey, Key kyoriKey) throws IOException {
@@ -182,11 +244,46 @@ public final class Key {
         if (keyFile == null)
             throw new IllegalStateException("Key File not specified.");
 
-        saveBytesAs(key, keyFile);
+        saveBytesAs(toBytes(), keyFile);
     }
 
     public void saveAs(File f) throws IllegalArgumentException, IOException {
-        saveBytesAs(key, createReplaceFile(f));
+        saveBytesAs(toBytes(), createReplaceFile(f));
         keyFile = f;
     }
+
+    private void parse(byte[] bytes) throws IllegalStateException {
+        // Versioned key file, files without header are SHA-256 keys
+        if (bytes.length > HEADER_LEN && Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            if (bytes[MAGIC.length] != VERSION)
+                throw new IllegalStateException("Unknown Key File version.");
+
+            try { algorithm = Hash.Algorithm.forId(bytes[MAGIC.length+1] & 0xff); }
+            catch (IllegalArgumentException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+            key = Arrays.copyOfRange(bytes, HEADER_LEN, bytes.length);
+        }
+        else {
+            algorithm = Hash.Algorithm.SHA_256;
+            key = bytes;
+        }
+
+        if (key.length < algorithm.getLength()+1)
+            throw new IllegalStateException("Key File too small.");
+
+        chestSize = key.length*2;
+        msgfLen = key.length-algorithm.getLength();
+    }
+
+    public byte[] toBytes() { // Key File content
+        byte[] bytes = new byte[HEADER_LEN + key.length];
+
+        System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+        bytes[MAGIC.length] = VERSION;
+        bytes[MAGIC.length+1] = (byte)algorithm.getId();
+        System.arraycopy(key, 0, bytes, HEADER_LEN, key.length);
+
+        return bytes;
+    }
 }
@@ -0,0 +1,317 @@
+package com.yudakan.sttp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * KeyReservoir Class
+ *
+ * Random bytes generated beforehand into a memory-mapped ring file, so
+ * burst sends do not pay for entropy. A background thread refills it
+ * from the low up to the high water mark, when it runs dry keys are
+ * generated live.
+ * Bytes are handed out once: the read position is leased and forced to
+ * disk before any byte of the lease leaves, and every byte is wiped
+ * from the file once drawn. A crash loses the rest of a lease, never
+ * reuses it.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public final class KeyReservoir implements RandomSource, Closeable {
+
+    /* Attributes */
+    public static final String DEFAULT_PATH = "./.packetKeys/reservoir";
+    private static final int MAGIC = 0x53545452; // "STTR"
+    private static final int HEADER_LEN = 24;    // magic, capacity, write & read positions
+    private static final int POS_WRITE = 8, POS_READ = 16;
+    private static final int CHUNK = 64 * 1024;  // bytes generated per refill step
+    private static final int LEASE = 64 * 1024;  // bytes of read position forced at once
+    private static final byte[] ZEROS = new byte[4096];
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int capacity, lowWaterMark, highWaterMark;
+    private final RandomSource source;
+
+    private final ReentrantLock lock = new ReentrantLock(), refilling = new ReentrantLock(); // refilling: one writer at a time
+    private final Condition low = lock.newCondition();
+    private long write, read, leased; // positions since the reservoir was created
+    private Thread filler;
+    private volatile boolean running;
+
+
+    /* Constructors */
+    private KeyReservoir(Builder builder) throws IOException {
+        this.file = new RandomAccessFile(builder.file, "rw");
+        this.source = builder.source;
+
+        // File closed on every failure, its mapping goes with the last reference
+        try {
+
+            // Existing reservoir keeps its capacity & positions
+            boolean exists = file.length() >= HEADER_LEN && file.readInt() == MAGIC;
+            int capacity = exists ? file.readInt() : builder.capacity;
+            if (capacity < 1 || capacity > Integer.MAX_VALUE - HEADER_LEN)
+                throw new IllegalStateException("Corrupted reservoir capacity " + capacity + '.');
+
+            this.capacity = capacity;
+            this.map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LEN + (long)capacity);
+            this.lowWaterMark = builder.lowWaterMark >= 0 ? Math.min(builder.lowWaterMark, capacity) : capacity/4;
+            this.highWaterMark = builder.highWaterMark >= 0 ? Math.min(builder.highWaterMark, capacity) : capacity;
+            if (lowWaterMark >= highWaterMark)
+                throw new IllegalStateException("Water marks meet at capacity " + capacity + ", low must stay below high.");
+
+            if (exists) {
+                write = map.getLong(POS_WRITE);
+                read = leased = map.getLong(POS_READ); // rest of last lease is lost
+                if (read < 0 || read > write || write-read > capacity)
+                    throw new IllegalStateException("Corrupted reservoir positions.");
+            }
+            else {
+                map.putInt(0, MAGIC);
+                map.putInt(4, capacity);
+                map.putLong(POS_WRITE, 0);
+                map.putLong(POS_READ, 0);
+                map.force();
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public static class Builder {
+
+        /* Attributes */
+        private File file;
+        private int capacity;
+        private int lowWaterMark, highWaterMark;
+        private RandomSource source;
+
+
+        /* Constructors */
+        public Builder() {
+            capacity = 16 * 1024 * 1024;
+            lowWaterMark = highWaterMark = -1;
+        }
+
+
+        /* Methods */
+        public Builder setFile(File f) throws IllegalArgumentException, IOException {
+            file = Key.createReplaceFile(f);
+            return this;
+        }
+
+        public Builder setCapacity(int capacity) throws IllegalArgumentException {
+            if (capacity < 1 || capacity > Integer.MAX_VALUE - HEADER_LEN)
+                throw new IllegalArgumentException("Capacity out of bounds.");
+
+            this.capacity = capacity;
+            return this;
+        }
+
+        public Builder setWaterMarks(int low, int high) throws IllegalArgumentException { // Refill below low, up to high
+            if (low < 0 || high < 1 || low >= high)
+                throw new IllegalArgumentException("Water marks must satisfy 0 <= low < high.");
+
+            this.lowWaterMark = low;
+            this.highWaterMark = high;
+            return this;
+        }
+
+        public Builder setSource(RandomSource source) { // Fills reservoir & live fallback
+            this.source = source;
+            return this;
+        }
+
+        public KeyReservoir build() throws IllegalStateException, IOException {
+            if (file == null)   file = Key.createReplaceFile(new File(DEFAULT_PATH));
+            if (source == null) source = RandomSource.threadLocal();
+
+            return new KeyReservoir(this);
+        }
+    }
+
+
+    /* Getters */
+    public long available() {
+        lock.lock();
+        try { return write-read; }
+        finally { lock.unlock(); }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    /* Methods */
+    @Override
+    public void nextBytes(byte[] bytes) {
+        lock.lock();
+        try {
+            if (write-read >= bytes.length && lease(bytes.length)) {
+                take(bytes);
+                if (write-read < lowWaterMark) low.signal();
+                return;
+            }
+            low.signal();
+        }
+        finally { lock.unlock(); }
+
+        // Dry reservoir, live generation
+        source.nextBytes(bytes);
+    }
+
+    public void fill() { // Up to high water mark, in the caller thread
+        byte[] chunk = new byte[CHUNK];
+        while (refill(chunk));
+    }
+
+    public void start() { // Background refills
+        lock.lock();
+        try {
+            if (filler != null) return;
+
+            running = true;
+            filler = new Thread(this::run, "sttp-key-reservoir");
+            filler.setDaemon(true);
+            filler.start();
+        }
+        finally { lock.unlock(); }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Thread th;
+
+        lock.lock();
+        try {
+            running = false;
+            th = filler;
+            filler = null;
+            low.signal();
+        }
+        finally { lock.unlock(); }
+
+        try {
+            if (th != null) th.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        map.force();
+        file.close();
+    }
+
+    private void run() {
+        byte[] chunk = new byte[CHUNK];
+
+        while (running) {
+            lock.lock();
+            try {
+                while (running && write-read >= lowWaterMark)
+                    low.await(1, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            finally { lock.unlock(); }
+
+            while (running && refill(chunk));
+        }
+    }
+
+    // One step towards high water mark, false when reached
+    private boolean refill(byte[] chunk) {
+        refilling.lock();
+        try {
+            lock.lock();
+            final int n;
+            try { n = (int)Math.min(chunk.length, highWaterMark - (write-read)); }
+            finally { lock.unlock(); }
+            if (n <= 0) return false;
+
+            // Out of the lock, only the refiller moves write position & nobody reads past it
+            byte[] bytes = n == chunk.length ? chunk : new byte[n];
+            source.nextBytes(bytes);
+            copy(bytes, write, true);
+
+            // Bytes on disk before the position that hands them out, or a crash could hand out zeros
+            try {
+                force(write, n);
+                map.putLong(POS_WRITE, write+n);
+                map.force(POS_WRITE, 8);
+            }
+            catch (RuntimeException e) {
+                return false;
+            }
+
+            lock.lock();
+            try {
+                write += n;
+                return true;
+            }
+            finally { lock.unlock(); }
+        }
+        finally { refilling.unlock(); }
+    }
+
+    // Forces read position past the bytes about to leave, false when unable to
+    private boolean lease(int n) {
+        if (read+n <= leased) return true;
+
+        leased = Math.min(write, read + Math.max(n, LEASE));
+        map.putLong(POS_READ, leased);
+        try {
+            map.force(POS_READ, 8);
+            return true;
+        }
+        catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private void take(byte[] bytes) {
+        copy(bytes, read, false);
+        read += bytes.length;
+    }
+
+    // Ring copy at position pos, into the file or out of it wiping what is read
+    private void copy(byte[] bytes, long pos, boolean in) {
+        int at = (int)(pos % capacity);
+        int first = Math.min(bytes.length, capacity-at);
+
+        copy(bytes, 0, HEADER_LEN + at, first, in);
+        copy(bytes, first, HEADER_LEN, bytes.length-first, in);
+    }
+
+    private void force(long pos, int len) { // Ring range
+        int at = (int)(pos % capacity);
+        int first = Math.min(len, capacity-at);
+
+        map.force(HEADER_LEN + at, first);
+        if (len > first) map.force(HEADER_LEN, len-first);
+    }
+
+    private void copy(byte[] bytes, int off, int index, int len, boolean in) {
+        if (in) map.put(index, bytes, off, len);
+        else {
+            map.get(index, bytes, off, len);
+            for (int i=0; i < len; i += ZEROS.length)
+                map.put(index+i, ZEROS, 0, Math.min(ZEROS.length, len-i));
+        }
+    }
+}
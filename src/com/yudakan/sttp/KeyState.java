@@ -0,0 +1,154 @@
+package com.yudakan.sttp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * KeyState Class
+ *
+ * Rolling key kept in a memory-mapped file with two slots written in
+ * turns. A slot stores the key with a generation counter and a CRC32C,
+ * and the checksum is written last. If a write is torn, the slot fails
+ * its checksum and the other slot, one generation older, is still
+ * whole. A persist is a copy into the page cache, which survives a
+ * process crash. Sync mode also forces the slot to disk and survives a
+ * power loss at the cost of a msync.
+ * Layout: [ magic | version | hash algorithm id | reserved (2) | key length ] [ slot A ] [ slot B ]
+ * Slot:   [ generation (8) | crc (4) | key ]
+ *
+ * @author yka
+ * @version 1.0
+ */
+public final class KeyState implements Closeable {
+
+    /* Attributes */
+    private static final int MAGIC = 0x5354544B; // "STTK"
+    private static final byte VERSION = 1;
+    private static final int HEADER_LEN = 12;
+    private static final int SLOT_HEADER_LEN = 12; // generation & crc
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final Key key;
+    private final int slotSize;
+    private final CRC32C crc = new CRC32C();
+    private long generation;
+    private boolean sync;
+
+
+    /* Constructors */
+    public KeyState(File f) throws IllegalStateException, IOException { // Existing state, newest whole slot
+        file = new RandomAccessFile(f, "rw");
+
+        // File closed on every failure
+        try {
+            if (file.length() < HEADER_LEN || file.readInt() != MAGIC)
+                throw new IllegalStateException("This is not a Key State file.");
+            if (file.readByte() != VERSION)
+                throw new IllegalStateException("Unknown Key State version.");
+
+            final Hash.Algorithm algorithm;
+            try { algorithm = Hash.Algorithm.forId(file.readUnsignedByte()); }
+            catch (IllegalArgumentException e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+            file.readShort();
+            final int keyLen = file.readInt();
+
+            slotSize = SLOT_HEADER_LEN + keyLen;
+            if (keyLen < algorithm.getLength()+1 || file.length() != HEADER_LEN + 2L*slotSize)
+                throw new IllegalStateException("Wrong Key State size.");
+
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LEN + 2L*slotSize);
+
+            // Newest slot whose checksum matches
+            byte[] bytes = new byte[keyLen], newest = null;
+            for (int slot=0; slot < 2; slot++) {
+                final int at = HEADER_LEN + slot*slotSize;
+                final long gen = map.getLong(at);
+
+                map.get(at+SLOT_HEADER_LEN, bytes);
+                if (gen > generation && map.getInt(at+8) == checksum(gen, bytes)) {
+                    generation = gen;
+                    newest = bytes.clone();
+                }
+            }
+            if (newest == null)
+                throw new IllegalStateException("No whole slot in Key State.");
+
+            key = new Key(newest, algorithm);
+        }
+        catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public KeyState(File f, Key key) throws IllegalArgumentException, IOException { // New state from key, replaces f
+        this.file = new RandomAccessFile(Key.createReplaceFile(f), "rw");
+        this.key = key;
+        this.slotSize = SLOT_HEADER_LEN + key.getLength();
+
+        file.setLength(0);
+        map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LEN + 2L*slotSize);
+        map.putInt(0, MAGIC);
+        map.put(4, VERSION);
+        map.put(5, (byte)key.getAlgorithm().getId());
+        map.putInt(8, key.getLength());
+
+        persist();
+        map.force();
+    }
+
+
+    /* Getters & Setters */
+    public Key getKey() { // Bytes of this key are the ones persisted
+        return key;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public void setSync(boolean sync) { // Force every persist to disk
+        this.sync = sync;
+    }
+
+
+    /* Methods */
+    // Actual bytes of key into the oldest slot
+    public void persist() {
+        final byte[] bytes = key.getKey_ByRef();
+        final long gen = generation+1;
+        final int at = HEADER_LEN + (int)(gen % 2)*slotSize;
+
+        map.putInt(at+8, 0); // invalid while the slot is being written
+        map.put(at+SLOT_HEADER_LEN, bytes);
+        map.putLong(at, gen);
+        map.putInt(at+8, checksum(gen, bytes));
+        if (sync) map.force(at, slotSize);
+
+        generation = gen;
+    }
+
+    @Override
+    public void close() throws IOException {
+        map.force();
+        file.close();
+    }
+
+    private int checksum(long gen, byte[] bytes) {
+        crc.reset();
+        for (int i=56; i >= 0; i -= 8) crc.update((int)(gen >>> i));
+        crc.update(bytes);
+
+        return (int)crc.getValue();
+    }
+}
@@ -0,0 +1,257 @@
+package com.yudakan.sttp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * KeyStore Class
+ *
+ * Key pairs of many peers, one directory per peer id under a root. Only
+ * a bounded LRU of pairs lives in memory: cold peers are loaded when a
+ * tunnel asks for them and pairs in use are never evicted. Released
+ * pairs are dirty until written back, in batches or when evicted, so
+ * neither memory nor I/O grows with the number of known peers.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public final class KeyStore implements Closeable {
+
+    /* Attributes */
+    public static final String DEFAULT_PATH = "./.packetKeys/peers";
+    private static final String APUROCHIKEY = "apurochiKey", KYORIKEY = "kyoriKey";
+    private static final Pattern PEER_ID = Pattern.compile("(?!\\.{1,2}$)[A-Za-z0-9._-]{1,128}");
+
+    private final File root;
+    private final int capacity, batch;
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true); // access order
+    private final ReentrantLock lock = new ReentrantLock();
+    private int dirty;
+
+
+    /* Constructors */
+    private KeyStore(Builder builder) {
+        this.root = builder.root;
+        this.capacity = builder.capacity;
+        this.batch = builder.batch;
+    }
+
+    public static class Builder {
+
+        /* Attributes */
+        private File root;
+        private int capacity, batch;
+
+
+        /* Constructors */
+        public Builder() {
+            capacity = 1024;
+            batch = 64;
+        }
+
+
+        /* Methods */
+        public Builder setRoot(File root) throws IllegalArgumentException {
+            if (root.isFile())
+                throw new IllegalArgumentException("This is not a directory, it's a file.");
+
+            this.root = root;
+            return this;
+        }
+
+        public Builder setCapacity(int capacity) throws IllegalArgumentException { // Pairs kept in memory
+            if (capacity < 1)
+                throw new IllegalArgumentException("Capacity must be a natural number.");
+
+            this.capacity = capacity;
+            return this;
+        }
+
+        public Builder setBatch(int batch) throws IllegalArgumentException { // Dirty pairs written back at once
+            if (batch < 1)
+                throw new IllegalArgumentException("Batch must be a natural number.");
+
+            this.batch = batch;
+            return this;
+        }
+
+        public KeyStore build() {
+            if (root == null) root = new File(DEFAULT_PATH);
+
+            return new KeyStore(this);
+        }
+    }
+
+    private static final class Entry {
+
+        /* Attributes */
+        private final Key apurochiKey, kyoriKey;
+        private boolean inUse, dirty;
+
+
+        /* Constructors */
+        private Entry(Key apurochiKey, Key kyoriKey) {
+            this.apurochiKey = apurochiKey;
+            this.kyoriKey = kyoriKey;
+        }
+    }
+
+
+    /* Getters */
+    public int getCached() {
+        lock.lock();
+        try { return cache.size(); }
+        finally { lock.unlock(); }
+    }
+
+    public boolean contains(String peer) {
+        return peerDir(peer).isDirectory();
+    }
+
+
+    /* Methods */
+    // New pair for peer, written at once
+    public void create(String peer, Key apurochiKey, Key kyoriKey) throws IllegalStateException, IOException {
+        File dir = peerDir(peer);
+
+        lock.lock();
+        try {
+            Entry entry = cache.get(peer);
+            if (entry != null && entry.inUse)
+                throw new IllegalStateException("Peer " + peer + " in use.");
+
+            apurochiKey.saveAs(new File(dir, APUROCHIKEY));
+            kyoriKey.saveAs(new File(dir, KYORIKEY));
+
+            if (entry != null && entry.dirty) dirty--;
+            cache.put(peer, new Entry(apurochiKey, kyoriKey));
+            trim();
+        }
+        finally { lock.unlock(); }
+    }
+
+    // {apurochiKey, kyoriKey} of peer, loaded if cold. Only one tunnel per peer at a time
+    public Key[] acquire(String peer) throws IllegalStateException, IOException {
+        File dir = peerDir(peer);
+
+        lock.lock();
+        try {
+            Entry entry = cache.get(peer);
+            if (entry == null) {
+                if (!dir.isDirectory())
+                    throw new IllegalStateException("Unknown peer " + peer + '.');
+
+                entry = new Entry(new Key(new File(dir, APUROCHIKEY)), new Key(new File(dir, KYORIKEY)));
+                cache.put(peer, entry);
+            }
+            else if (entry.inUse)
+                throw new IllegalStateException("Peer " + peer + " already in use.");
+
+            entry.inUse = true;
+            trim();
+
+            return new Key[]{ entry.apurochiKey, entry.kyoriKey };
+        }
+        finally { lock.unlock(); }
+    }
+
+    // Keys of peer rolled, written back with the next batch
+    public void release(String peer) throws IOException {
+        lock.lock();
+        try {
+            Entry entry = cache.get(peer);
+            if (entry == null || !entry.inUse) return;
+
+            entry.inUse = false;
+            if (!entry.dirty) {
+                entry.dirty = true;
+                dirty++;
+            }
+
+            if (dirty >= batch) flush();
+            else trim();
+        }
+        finally { lock.unlock(); }
+    }
+
+    // Keys of peer written now, whether it is in use or not
+    public void save(String peer) throws IOException {
+        lock.lock();
+        try {
+            Entry entry = cache.get(peer);
+            if (entry != null) write(entry);
+        }
+        finally { lock.unlock(); }
+    }
+
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            for (Entry entry : cache.values())
+                if (entry.dirty) write(entry);
+
+            trim();
+        }
+        finally { lock.unlock(); }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    // Provider for servers & runners, peer id taken from the remote address
+    public TunnelServer.KeyProvider provider(Function<SocketAddress, String> peerOf) {
+        return new TunnelServer.KeyProvider() {
+            @Override
+            public Key[] acquire(SocketAddress peer) throws IOException {
+                return KeyStore.this.acquire(peerOf.apply(peer));
+            }
+
+            @Override
+            public void release(SocketAddress peer, Key apurochiKey, Key kyoriKey) throws IOException {
+                KeyStore.this.release(peerOf.apply(peer));
+            }
+        };
+    }
+
+    // Least recently used pairs out, dirty ones written first
+    private void trim() throws IOException {
+        Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator();
+
+        while (cache.size() > capacity && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.inUse) continue;
+
+            if (entry.dirty) write(entry);
+            it.remove();
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        entry.apurochiKey.save();
+        entry.kyoriKey.save();
+
+        if (entry.dirty) {
+            entry.dirty = false;
+            dirty--;
+        }
+    }
+
+    private File peerDir(String peer) throws IllegalArgumentException {
+        if (!PEER_ID.matcher(peer).matches())
+            throw new IllegalArgumentException("Peer id must be 1 to 128 letters, digits, '.', '_' or '-', and not '.' nor '..'.");
+
+        return new File(root, peer);
+    }
+}
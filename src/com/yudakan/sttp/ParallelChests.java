@@ -0,0 +1,153 @@
+package com.yudakan.sttp;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * ParallelChests Class
+ *
+ * Seals and opens batches of chests. The key chain is walked sequentially,
+ * it only costs a keygen and a xor per chest, while hashing and the
+ * encryption of hash & message fragment are spread across a ForkJoinPool.
+ * Batch & keys are scratch buffers of one caller at a time, a tunnel
+ * keeps one instance to push and another one to pull.
+ *
+ * @author yka
+ * @version 1.0
+ */
+final class ParallelChests {
+
+    /* Attributes */
+    static final int BATCH_SIZE = 256 * 1024; // bytes of chests per batch
+    private static final int THRESHOLD = 4;   // chests per task
+
+    private final ForkJoinPool pool;
+    private byte[] batch, keys, newKey;
+
+
+    /* Constructors */
+    ParallelChests(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+
+    /* Getters */
+    byte[] getBatch() {
+        return batch;
+    }
+
+    static int getBatchChests(int chestSize) {
+        return Math.max(1, BATCH_SIZE / chestSize);
+    }
+
+
+    /* Methods */
+    // Encrypts nChests chests of src into batch, key is updated as sequential push would
+    void seal(Key key, RandomSource random, byte[] src, int off, int len, int nChests, TunnelMetrics.Sample m) {
+        final int hashLen = key.getHashLength();
+        final int msgfLen = key.getMsgfLen();
+        final int keyLen = key.getLength();
+        final int chestSize = key.getChestSize();
+        final byte[] actualKey = key.getKey_ByRef();
+
+        ensureCapacity(nChests, chestSize, keyLen);
+        long t = m != null ? System.nanoTime() : 0;
+
+        // Key chain & fragments, sequential
+        for (int i=0, k=0; i < nChests; i++, k += msgfLen) {
+            final int base = i*chestSize;
+
+            System.arraycopy(src, off+k, batch, base+hashLen, Math.min(msgfLen, len-k));
+            System.arraycopy(actualKey, 0, keys, i*keyLen, keyLen);
+
+            Key.Keygen.generate(newKey, random);
+            System.arraycopy(newKey, 0, batch, base+keyLen, keyLen);
+            Xor.xor(actualKey, 0, batch, base+keyLen, keyLen);
+            System.arraycopy(newKey, 0, actualKey, 0, keyLen);
+        }
+        if (m != null) t = m.keygen(t);
+
+        // Hash & encrypt, parallel
+        pool.invoke(new Chests(0, nChests, i -> {
+            final int base = i*chestSize;
+            Hash.local(key.getAlgorithm()).digest(batch, base+hashLen, msgfLen, batch, base);
+            Xor.xor(keys, i*keyLen, batch, base, keyLen);
+        }));
+        if (m != null) m.hash(t);
+    }
+
+    // Decrypts nChests chests of batch into dst, returns first corrupted chest or -1
+    int open(Key key, byte[] dst, int off, int len, int nChests, TunnelMetrics.Sample m) {
+        final int hashLen = key.getHashLength();
+        final int msgfLen = key.getMsgfLen();
+        final int keyLen = key.getLength();
+        final int chestSize = key.getChestSize();
+        final byte[] actualKey = key.getKey_ByRef();
+        final AtomicInteger corrupted = new AtomicInteger(nChests);
+        long t = m != null ? System.nanoTime() : 0;
+
+        // Key chain, sequential
+        for (int i=0; i < nChests; i++) {
+            final int base = i*chestSize;
+
+            System.arraycopy(actualKey, 0, keys, i*keyLen, keyLen);
+            Xor.xor(actualKey, 0, batch, base+keyLen, keyLen);
+            System.arraycopy(batch, base+keyLen, actualKey, 0, keyLen);
+        }
+        if (m != null) t = m.keygen(t);
+
+        // Decrypt & check integrity, parallel
+        pool.invoke(new Chests(0, nChests, i -> {
+            final int base = i*chestSize;
+            final int k = i*msgfLen;
+
+            Xor.xor(keys, i*keyLen, batch, base, keyLen);
+            if (!Hash.local(key.getAlgorithm()).verify(batch, base+hashLen, msgfLen, batch, base))
+                corrupted.accumulateAndGet(i, Math::min);
+            else
+                System.arraycopy(batch, base+hashLen, dst, off+k, Math.min(msgfLen, len-k));
+        }));
+        if (m != null) m.hash(t);
+
+        // Key stays at the corrupted chest, as sequential pull does
+        if (corrupted.get() < nChests) {
+            System.arraycopy(keys, corrupted.get()*keyLen, actualKey, 0, keyLen);
+            return corrupted.get();
+        }
+
+        return -1;
+    }
+
+    void ensureCapacity(int nChests, int chestSize, int keyLen) {
+        if (batch == null || batch.length < nChests*chestSize) batch = new byte[nChests*chestSize];
+        if (keys == null || keys.length < nChests*keyLen)      keys = new byte[nChests*keyLen];
+        if (newKey == null || newKey.length != keyLen)         newKey = new byte[keyLen];
+    }
+
+    private static final class Chests extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+        private final transient IntConsumer chest; // tasks are never serialized
+
+        Chests(int from, int to, IntConsumer chest) {
+            this.from = from;
+            this.to = to;
+            this.chest = chest;
+        }
+
+        @Override
+        protected void compute() {
+            if (to-from <= THRESHOLD) {
+                for (int i=from; i < to; i++) chest.accept(i);
+            }
+            else {
+                int mid = (from+to) >>> 1;
+                invokeAll(new Chests(from, mid, chest), new Chests(mid, to, chest));
+            }
+        }
+    }
+}
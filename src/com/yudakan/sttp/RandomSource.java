@@ -0,0 +1,61 @@
+package com.yudakan.sttp;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * RandomSource Interface
+ *
+ * Where new keys get their random bytes from. Sources are built once and
+ * reused, instantiating a PRNG per chest is what used to bound push.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public interface RandomSource {
+
+    /* Attributes */
+    RandomSource CACHED = of(instance("SHA1PRNG", "SUN"));
+
+
+    /* Methods */
+    void nextBytes(byte[] bytes);
+
+    // One SHA1PRNG shared by everyone, as Keygen always used
+    static RandomSource cached() {
+        return CACHED;
+    }
+
+    // One DRBG per thread, no contention between concurrent tunnels
+    static RandomSource threadLocal() {
+        ThreadLocal<SecureRandom> local = ThreadLocal.withInitial(() -> instance("DRBG", null));
+        return bytes -> local.get().nextBytes(bytes);
+    }
+
+    // Operating system source, /dev/random & /dev/urandom
+    static RandomSource nativePrng() {
+        return of(instance("NativePRNG", null));
+    }
+
+    // Deterministic, same seed same keys. For tests only
+    static RandomSource seeded(long seed) {
+        SecureRandom rand = instance("SHA1PRNG", "SUN");
+        rand.setSeed(seed);
+        return of(rand);
+    }
+
+    static RandomSource of(SecureRandom rand) {
+        return rand::nextBytes;
+    }
+
+    private static SecureRandom instance(String algorithm, String provider) {
+        try {
+            return provider == null ? SecureRandom.getInstance(algorithm) : SecureRandom.getInstance(algorithm, provider);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+}
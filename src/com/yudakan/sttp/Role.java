@@ -0,0 +1,40 @@
+package com.yudakan.sttp;
+
+import java.io.IOException;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * Role Class
+ *
+ * Which end of a tunnel this is. Both ends are given the same two keys:
+ * the end that pushes first sends with apurochi, the one that pulls first
+ * swaps them and sends with kyori. Keys are saved in the given order
+ * whatever the role, so both ends load them back the same way.
+ *
+ * @author yka
+ * @version 1.0
+ */
+final class Role {
+
+    /* Attributes */
+    private byte whoami = -1; // 0 pushed first, 1 pulled first
+
+
+    /* Methods */
+    void sender() { // Sender if still unknown
+        if (whoami == -1) whoami = 0;
+    }
+
+    boolean receiver() { // Receiver if still unknown, true once: the caller swaps apurochi & kyori then
+        if (whoami != -1) return false;
+
+        whoami = 1;
+        return true;
+    }
+
+    void pack(Key apurochiKey, Key kyoriKey) throws IOException { // Keys as the tunnel holds them now
+        if (whoami == 0)      Key.pack(apurochiKey, kyoriKey);
+        else if (whoami == 1) Key.pack(kyoriKey, apurochiKey);
+    }
+}
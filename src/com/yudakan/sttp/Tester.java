@@ -7,6 +7,7 @@ import java.io.FileOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * -- STTP --
@@ -66,6 +67,7 @@ abstract class TCP implements Runnable {
     protected volatile DataOutputStream out;
     protected volatile int port;
     protected volatile byte[] msg;
+    private final ReentrantLock lock = new ReentrantLock(); // synchronized would pin a virtual thread
 
     static {
         DEFAULT_PORT = 4097;
@@ -111,32 +113,40 @@ abstract class TCP implements Runnable {
 
 
     /* Methods */
-    public synchronized boolean start() {
-        if (th != null)
-            return false;
-        else {
-            th = new Thread(this);
-            th.start();
-            return true;
+    public boolean start() {
+        lock.lock();
+        try {
+            if (th != null)
+                return false;
+            else {
+                th = TunnelRunner.newThread(this, "sttp-tcp-");
+                th.start();
+                return true;
+            }
         }
+        finally { lock.unlock(); }
     }
 
-    public synchronized boolean stop() {
-        if (th == null)
-            return false;
-        else {
-            try {
-                if (serverSocket != null && !serverSocket.isClosed())
-                    serverSocket.close();
-                th.join();
-            }
-            catch (Exception e) {
-                e.printStackTrace();
-                System.exit(-1);
-            }
+    public boolean stop() {
+        lock.lock();
+        try {
+            if (th == null)
+                return false;
+            else {
+                try {
+                    if (serverSocket != null && !serverSocket.isClosed())
+                        serverSocket.close();
+                    th.join();
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                    System.exit(-1);
+                }
 
-            return true;
+                return true;
+            }
         }
+        finally { lock.unlock(); }
     }
 }
 
@@ -1,18 +1,21 @@
 package com.yudakan.sttp;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.nio.ByteBuffer;
-import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Calendar;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * -- STTP --
@@ -29,11 +32,43 @@ public final class Tunnel {
     private DataOutputStream out;
     private PrintStream log;
     private Key apurochiKey, kyoriKey;
+    private FlushPolicy flushPolicy;
+    private ParallelChests pushParallel, pullParallel; // own batch & key buffers each, push & pull may run at once
+    private RandomSource random;
+    private Hash apurochiHash, kyoriHash;
+    private KeyState apurochiState, kyoriState;
+    private int persistEvery, pushUnsaved, pullUnsaved; // chests
+    private KeyStore keyStore;
+    private String peer;
+    private boolean saveKeys;
+    private TunnelMetrics metrics;
+    private Codec codec;
+    private final TunnelMetrics.Sample pushSample = new TunnelMetrics.Sample(true), pullSample = new TunnelMetrics.Sample(false);
+    private TunnelMetrics.Sample pushing, pulling; // metered message going through, null if nobody listens
 
-    private byte whoami = -1;
+    private final Role role = new Role();
+    private final ReentrantLock saving = new ReentrantLock(); // pushing & pulling threads may both fail at once
+    private byte[] pushHash, pushMsgf, pushNewKey, pushNewKeyNoCrypt;
+    private byte[] pullChest;
+    private byte[] pushChunk, pullChunk; // stream messages
+    private byte[] pushPacked;              // compressed messages
+    private long pullPackedLen = -1;        // length on the wire of the message being pulled if packed
+    private Codec pullCodec;
+    private boolean pullBatch;              // message being pulled is a batch of records
+    private boolean trimTail, pushTrim, pullTrim; // last chest only as long as the tail of the message
+    private final ArrayDeque<byte[]> records = new ArrayDeque<>(); // pulled, not yet taken
+    private ChestSizing.State sizing;
+    private int resizeTo = -1;              // bmpc of the next pushed key, told to the peer before the next message
+    private int pullResize = -1;            // bmpc of the next pulled key, -1 if the header didn't say
+    private long pullPending = -1;          // length of a message whose header was read, not its chests
+    private long pushStart, pushLen;
 
-    final private Calendar cal = Calendar.getInstance();
-    final private SimpleDateFormat sdf = new SimpleDateFormat("dd.MM.yyyy 'at' HH:mm:ss");
+    static final int LONG_HEADER = 0x80000001;   // tag of 64-bit length header
+    static final int PACKED_HEADER = 0x80000002; // tag of compressed message header: codec id, msgLen & packed length
+    static final int BATCH_HEADER = 0x80000003;  // tag before the header of a batch of records: [ len (4) | bytes ] ...
+    static final int TRIM_HEADER = 0x80000004;   // tag before the header of a message whose last chest is trimmed
+    static final int RESIZE_HEADER = 0x80000005; // tag & new bmpc before the header of the extra bytes of the next key, see ChestSizing
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("dd.MM.yyyy 'at' HH:mm:ss");
 
 
     /* Constructors */
@@ -41,23 +76,56 @@ public final class Tunnel {
 
     private Tunnel(Builder builder) {
         this.in = builder.in;
-        this.out = builder.out;
         this.log = builder.log;
         this.apurochiKey = builder.apurochiKey;
         this.kyoriKey = builder.kyoriKey;
+        this.apurochiHash = new Hash(apurochiKey.getAlgorithm());
+        this.kyoriHash = new Hash(kyoriKey.getAlgorithm());
+        this.flushPolicy = builder.flushPolicy;
+        this.random = builder.random;
+        this.pushParallel = builder.pool != null ? new ParallelChests(builder.pool) : null;
+        this.pullParallel = builder.pool != null ? new ParallelChests(builder.pool) : null;
+        this.apurochiState = builder.apurochiState;
+        this.kyoriState = builder.kyoriState;
+        this.persistEvery = builder.persistEvery;
+        this.keyStore = builder.keyStore;
+        this.peer = builder.peer;
+        this.saveKeys = builder.saveKeys;
+        this.metrics = builder.metrics;
+        this.codec = builder.codec;
+        this.trimTail = builder.trimTail;
+        this.sizing = builder.sizing != null ? builder.sizing.state() : null;
+
+        // Chests are coalesced in one write buffer, big enough for a chest of any of both keys
+        int chestSize = Math.max(apurochiKey.getChestSize(), kyoriKey.getChestSize());
+        this.out = new DataOutputStream(new BufferedOutputStream(builder.out, flushPolicy.getBufferSize(chestSize)));
     }
 
     public static class Builder {
 
         /* Attributes */
         private DataInputStream in;
-        private DataOutputStream out;
+        private OutputStream out;
         private PrintStream log;
         private Key apurochiKey, kyoriKey;
+        private FlushPolicy flushPolicy;
+        private ForkJoinPool pool;
+        private RandomSource random;
+        private KeyState apurochiState, kyoriState;
+        private int persistEvery;
+        private KeyStore keyStore;
+        private String peer;
+        private boolean saveKeys;
+        private TunnelMetrics metrics;
+        private Codec codec;
+        private boolean trimTail;
+        private ChestSizing sizing;
 
 
         /* Constructors */
-        public Builder() {}
+        public Builder() {
+            saveKeys = true;
+        }
 
 
         /* Methods */
@@ -68,7 +136,13 @@ public final class Tunnel {
         }
 
         public Builder setOut(OutputStream out) {
-            this.out = new DataOutputStream(out);
+            this.out = out;
+            return this;
+        }
+
+        public Builder setLink(TunnelLink link) { // In & out resumed after a drop, messages go on where they were
+            this.in = new DataInputStream(link.getInputStream());
+            this.out = link.getOutputStream();
             return this;
         }
 
@@ -87,13 +161,85 @@ public final class Tunnel {
             return this;
         }
 
+        public Builder setFlushPolicy(FlushPolicy flushPolicy) {
+            this.flushPolicy = flushPolicy;
+            return this;
+        }
+
+        public Builder setRandom(RandomSource random) { // Source of new keys
+            this.random = random;
+            return this;
+        }
+
+        public Builder setParallel(ForkJoinPool pool) { // Hash chests in parallel, null means sequential
+            this.pool = pool;
+            return this;
+        }
+
+        public Builder setKeyStates(KeyState apurochiState, KeyState kyoriState) { // Keys persisted as they roll
+            this.apurochiState = apurochiState;
+            this.kyoriState = kyoriState;
+            this.apurochiKey = apurochiState.getKey();
+            this.kyoriKey = kyoriState.getKey();
+            return this;
+        }
+
+        public Builder setPeer(KeyStore keyStore, String peer) { // Keys of peer, given back to keyStore on close
+            this.keyStore = keyStore;
+            this.peer = peer;
+            return this;
+        }
+
+        public Builder setSaveKeys(boolean saveKeys) { // false when their owner saves them, e.g. a KeyProvider
+            this.saveKeys = saveKeys;
+            return this;
+        }
+
+        public Builder setPersistEvery(int chests) throws IllegalArgumentException { // 0 means once per message
+            if (chests < 0)
+                throw new IllegalArgumentException("Chests between persists can't be negative.");
+
+            this.persistEvery = chests;
+            return this;
+        }
+
+        public Builder setMetrics(TunnelMetrics metrics) { // Told about every message, null means nobody
+            this.metrics = metrics;
+            return this;
+        }
+
+        public Builder setCodec(Codec codec) { // Compress messages that save chests, null means never
+            this.codec = codec;
+            return this;
+        }
+
+        public Builder setTrimTail(boolean trimTail) { // Last chest of a message only as long as its tail, the peer must know TRIM_HEADER
+            this.trimTail = trimTail;
+            return this;
+        }
+
+        public Builder setChestSizing(ChestSizing sizing) { // Pushed key resized to the messages, null means never, the peer must know RESIZE_HEADER
+            this.sizing = sizing;
+            return this;
+        }
+
         public Tunnel build() throws IllegalStateException, IOException {
+            if (sizing != null && (apurochiState != null || kyoriState != null))
+                throw new IllegalStateException("Key States have fixed key lengths, chests can't be resized.");
+            if (keyStore != null) {
+                Key[] pair = keyStore.acquire(peer);
+                apurochiKey = pair[0];
+                kyoriKey = pair[1];
+            }
+
             try {
                 if (in == null)           in = new DataInputStream(System.in);
-                if (out == null)          out = new DataOutputStream(System.out);
+                if (out == null)          out = System.out;
                 if (log == null)          log = new PrintStream(System.err, true);
                 if (apurochiKey == null)        apurochiKey = new Key(new File(Key.DEFAULT_PATH_APUROCHIKEY));
                 if (kyoriKey == null)     kyoriKey = new Key(new File(Key.DEFAULT_PATH_KYORIKEY));
+                if (flushPolicy == null)  flushPolicy = FlushPolicy.perMessage();
+                if (random == null)       random = RandomSource.cached();
 
                 return new Tunnel(this);
             }
@@ -106,63 +252,192 @@ public final class Tunnel {
 
     /* Methods */
     public boolean push(byte[] msg, boolean passByValue) { // Send message
+        msg = passByValue ? msg.clone() : msg;
+        return push(msg, 0, msg.length);
+    }
+
+    public void push(byte[] msg) {
+        push(msg, false);
+    }
+
+    public boolean push(byte[] msg, int off, int len) { // Send message fragment
+        return push(msg, off, len, false);
+    }
+
+    // records are length-prefixed messages, see TunnelBatcher
+    boolean pushBatch(byte[] records, int off, int len) {
+        return push(records, off, len, true);
+    }
+
+    private boolean push(byte[] msg, int off, int len, boolean batch) {
 
         // Who am I?
-        if (whoami == -1) whoami = 0;
+        sender();
+        beginPush();
+        if (!pushResize()) return endPush(false);
 
-        // Vars
-        final int nChests;
-        final byte[] header; // msgLen
-        byte[] hash = null;
-        byte[] msgf = new byte[apurochiKey.getMsgfLen()];
-        byte[] newKeyNoCrypt = new byte[apurochiKey.getLength()];
-        byte[] newKey = new byte[apurochiKey.getLength()];
-
-        // Get msg
-        msg = passByValue ? msg.clone() : msg;
+        // Packed if it saves chests
+        final int packedLen = pack(msg, off, len);
+        if (packedLen != -1)
+            return endPush(pushHeader(len, packedLen, batch) && pushChests(pushPacked, 0, packedLen, 0, packedLen) && pushEnd(packedLen));
+
+        // Send header --> msgLen, then any chest
+        return endPush(pushHeader(len, -1, batch) && pushChests(msg, off, len, 0, len) && pushEnd(len));
+    }
+
+    public boolean push(InputStream src, long len) { // Send len bytes of src, never whole in memory
+
+        // Who am I?
+        sender();
+        beginPush();
+        if (!pushResize()) return endPush(false);
+
+        return endPush(pushStream(src, len));
+    }
+
+    private boolean pushStream(InputStream src, long len) {
+
+        // Send header --> msgLen
+        if (len < 0) {
+            error("Negative length in push method.", null, 0, 0, 0, len);
+            return false;
+        }
+        if (!pushHeader(len, -1, false)) return false;
+
+        // Chunks of whole chests
+        final int chunkLen = getChunkLen(apurochiKey);
+        if (pushChunk == null || pushChunk.length != chunkLen) pushChunk = new byte[chunkLen];
+
+        for (long k=0; k < len; ) {
+            final int n = (int)Math.min(chunkLen, len-k);
+
+            try {
+                if (src.readNBytes(pushChunk, 0, n) != n)
+                    throw new EOFException("Source ended before " + len + " bytes.");
+            }
+            catch (IOException e) {
+                error("IOException when trying to read source in push method.", e, k/apurochiKey.getMsgfLen(), getChests(len, apurochiKey), k, len);
+                return false;
+            }
+
+            if (!pushChests(pushChunk, 0, n, k, len)) return false;
+            k += n;
+        }
+
+        return pushEnd(len);
+    }
+
+    private boolean pushHeader(long msgLen, long packedLen, boolean batch) { // packedLen -1 if not packed
+        pushLen = msgLen;
+        pushTrim = trimTail && (packedLen == -1 ? msgLen : packedLen) % apurochiKey.getMsgfLen() != 0;
+
+        try {
+            if (batch) {
+                out.writeInt(BATCH_HEADER);
+                if (pushing != null) pushing.wireBytes += 4;
+            }
+            if (pushTrim) {
+                out.writeInt(TRIM_HEADER);
+                if (pushing != null) pushing.wireBytes += 4;
+            }
+            if (packedLen == -1) writeHeader(msgLen);
+            else                 writePackedHeader(msgLen, packedLen);
+            return true;
+        }
+        catch (IOException e) {
+            error("IOException when trying to send header in push method.", e, 0, getChests(packedLen == -1 ? msgLen : packedLen, apurochiKey), 0, msgLen);
+            return false;
+        }
+    }
+
+    // Key resize chosen by sizing after the last message: new bmpc, then the extra key bytes if it grows
+    private boolean pushResize() {
+        if (resizeTo == -1) return true;
 
-        // Initialize final vars
-        nChests = (int)Math.ceil( (double)msg.length / apurochiKey.getMsgfLen() );
-        header = ByteBuffer.allocate(4).putInt(msg.length).array();
+        final int length = resizeTo + apurochiKey.getHashLength();
+        final int chestSize = apurochiKey.getChestSize();
+        final byte[] extra = new byte[Math.max(0, length-apurochiKey.getLength())];
+        Key.Keygen.generate(extra, random);
+
+        try {
+            out.writeInt(RESIZE_HEADER);
+            out.writeInt(resizeTo);
+            if (pushing != null) pushing.wireBytes += 8;
+        }
+        catch (IOException e) {
+            error("IOException when trying to send key resize in push method.", e, 0, 0, 0, extra.length);
+            return false;
+        }
+        resizeTo = -1;
+        if (!pushHeader(extra.length, -1, false) || !pushChests(extra, 0, extra.length, 0, extra.length)) return false;
+
+        // Chests of the old size, end() counts them at the new one
+        if (pushing != null) pushing.wireBytes += pushing.chests * (chestSize - 2L*length);
+        apurochiKey.resize(length, extra);
+        return true;
+    }
+
+    // Packed length of msg into pushPacked, -1 if there is no codec or it wouldn't save a chest
+    private int pack(byte[] msg, int off, int len) {
+        final int msgfLen = apurochiKey.getMsgfLen();
+        if (codec == null || len <= msgfLen) return -1;
+
+        final int maxLen = (int)(getChests(len, apurochiKey)-1) * msgfLen;
+        if (pushPacked == null || pushPacked.length < maxLen) pushPacked = new byte[maxLen];
+
+        final int packedLen = codec.compress(msg, off, len, pushPacked);
+        return packedLen <= maxLen ? packedLen : -1;
+    }
+
+    // len bytes of msg, done bytes of the whole message already sent
+    private boolean pushChests(byte[] msg, int off, int len, long done, long msgLen) {
+
+        // Vars
+        final int nChests = (int)getChests(len, apurochiKey);
+        final long base = done/apurochiKey.getMsgfLen();
+        final long allChests = getChests(msgLen, apurochiKey);
 
         // Any Chest //
         // i -> count chests
-        // j -> count bytes of message per chest
         // k -> count bytes of message per whole message
-        for (int i=0, j, k=0; i < nChests; i++) {
+        int i = 0, k = 0;
+        if (pushParallel != null && nChests > 1) {
+            final int batchChests = ParallelChests.getBatchChests(apurochiKey.getChestSize());
+            final int nSealed = pushTrim && len % apurochiKey.getMsgfLen() != 0 ? nChests-1 : nChests; // trimmed tail goes alone
 
-            // Get piece of msg
-            if (i != nChests-1) {
-                for (j=0; j < apurochiKey.getMsgfLen(); j++, k++)
-                    msgf[j] = msg[k];
-            }
-            else { // Last iteration
-                for (j=0; k < msg.length; j++, k++)
-                    msgf[j] = msg[k];
-            }
+            while (i < nSealed) {
+                final int c = Math.min(batchChests, nSealed-i);
+                final int n = Math.min(c*apurochiKey.getMsgfLen(), len-k);
 
-            // Generate hash & new key
-            hash = Hash.create(msgf);
-            Key.Keygen.generate(newKeyNoCrypt);
-            System.arraycopy(newKeyNoCrypt, 0, newKey, 0, newKey.length);
+                try {
+                    pushParallel.seal(apurochiKey, random, msg, off+k, n, c, pushing);
 
-            // Encrypt
-            xor(apurochiKey.getKey_ByRef(), hash, msgf);
-            xor(apurochiKey.getKey_ByRef(), newKey);
+                    final long t = pushing != null ? System.nanoTime() : 0;
+                    out.write(pushParallel.getBatch(), 0, c*apurochiKey.getChestSize());
+                    if (flushPolicy.getMode() == FlushPolicy.Mode.CHEST) out.flush();
+                    if (pushing != null) pushing.io(t);
+                    pushed(c, false);
+                    i += c;
+                    k += n;
+                }
+                catch (IOException e) {
+                    error("IOException when trying to send data in push method.", e, base+i, allChests, done+k, msgLen);
+                    return false;
+                }
+            }
+        }
 
-            // Update actual key
-            System.arraycopy(newKeyNoCrypt, 0, apurochiKey.getKey_ByRef(), 0, apurochiKey.getLength());
+        for (; i < nChests; i++) {
+            final int n = Math.min(apurochiKey.getMsgfLen(), len-k);
 
-            // Send
             try {
-                if (i == 0) out.write(header);
-                out.write(hash);
-                out.write(msgf);
-                out.write(newKey);
-                out.flush();
+                writeChest(msg, off+k, n);
+                if (flushPolicy.getMode() == FlushPolicy.Mode.CHEST) flushChest();
+                pushed(1, false);
+                k += n;
             }
             catch (IOException e) {
-                error("IOException when trying to send data in push method.", e, i, nChests, k, msg.length);
+                error("IOException when trying to send data in push method.", e, base+i, allChests, done+k, msgLen);
                 return false;
             }
         }
@@ -170,103 +445,662 @@ public final class Tunnel {
         return true;
     }
 
-    public void push(byte[] msg) {
-        push(msg, false);
+    private boolean pushEnd(long msgLen) {
+
+        // Send whatever is left in write buffer
+        try {
+            final long t = pushing != null ? System.nanoTime() : 0;
+            if (flushPolicy.getMode() != FlushPolicy.Mode.BYTES) out.flush();
+            if (pushing != null) pushing.io(t);
+        }
+        catch (IOException e) {
+            final long nChests = getChests(msgLen, apurochiKey);
+            error("IOException when trying to flush data in push method.", e, nChests, nChests, msgLen, msgLen);
+            return false;
+        }
+
+        pushed(0, true);
+        return true;
     }
 
     public byte[] pull() { // Receive message
 
         // Who am I?
-        if (whoami == -1) {
-            Key tempKey = apurochiKey;
-            apurochiKey = kyoriKey;
-            kyoriKey = tempKey;
-            whoami = 1;
+        receiver();
+        if (!records.isEmpty()) return records.poll();
+        beginPull();
+
+        final byte[] msg = pullArray();
+        endPull(msg != null);
+        return msg;
+    }
+
+    private byte[] pullArray() {
+
+        // Get header --> msgLen
+        final long msgLen = pullHeader();
+        if (msgLen < 0) return null;
+        if (msgLen > Integer.MAX_VALUE) {
+            pullPending = msgLen;
+            warn("Message too big for an array in pull method, pull it into a stream.");
+            return null;
         }
 
-        // Vars
-        final int nChests;
-        byte[] msg;
-        byte[] header = new byte[4];
-        byte[] hash = new byte[Hash.length()];
-        byte[] msgf = new byte[kyoriKey.getMsgfLen()];
-        byte[] newKey = new byte[kyoriKey.getLength()];
-        ByteArrayInputStream in;
+        if (pullBatch) return pullRecords(msgLen) ? records.poll() : null;
+
+        byte[] msg = new byte[(int)msgLen];
+        if (pullPackedLen != -1) return pullUnpacked(new Sink(null, msg, 0, msgLen), msgLen) ? msg : null;
+
+        return pullChests(msg, 0, msg.length, 0, msgLen) && pullEnd() ? msg : null;
+    }
+
+    public int pull(byte[] dst, int off) { // Receive message into dst, returns its length or -1
+
+        // Who am I?
+        receiver();
+        if (!records.isEmpty()) return takeRecord(dst, off);
+        beginPull();
+
+        final int len = pullInto(dst, off);
+        endPull(len != -1);
+        return len;
+    }
+
+    private int pullInto(byte[] dst, int off) {
+
+        // Get header --> msgLen
+        final long msgLen = pullHeader();
+        if (msgLen < 0) return -1;
+        if (pullBatch) return pullRecords(msgLen) ? takeRecord(dst, off) : -1;
+        if (off < 0 || off > dst.length || msgLen > dst.length-off) {
+            pullPending = msgLen;
+            warn("Destination too small in pull method, " + msgLen + " bytes needed.");
+            return -1;
+        }
+        if (pullPackedLen != -1) return pullUnpacked(new Sink(null, dst, off, msgLen), msgLen) ? (int)msgLen : -1;
+
+        return pullChests(dst, off, (int)msgLen, 0, msgLen) && pullEnd() ? (int)msgLen : -1;
+    }
+
+    public long pull(OutputStream dst) { // Receive message into dst chunk by chunk, returns its length or -1
+
+        // Who am I?
+        receiver();
+        if (!records.isEmpty()) return takeRecord(dst);
+        beginPull();
+
+        final long len = pullStream(dst);
+        endPull(len != -1);
+        return len;
+    }
+
+    private long pullStream(OutputStream dst) {
 
         // Get header --> msgLen
+        final long msgLen = pullHeader();
+        if (msgLen < 0) return -1;
+        if (pullBatch) return pullRecords(msgLen) ? takeRecord(dst) : -1;
+        if (pullPackedLen != -1) return pullUnpacked(new Sink(dst, null, 0, msgLen), msgLen) ? msgLen : -1;
+
+        return pullChunks(dst, msgLen) && pullEnd() ? msgLen : -1;
+    }
+
+    // Chunks of whole chests, each one verified before it leaves
+    private boolean pullChunks(OutputStream dst, long len) {
+        final int chunkLen = getChunkLen(kyoriKey);
+        if (pullChunk == null || pullChunk.length != chunkLen) pullChunk = new byte[chunkLen];
+
+        for (long k=0; k < len; ) {
+            final int n = (int)Math.min(chunkLen, len-k);
+            if (!pullChests(pullChunk, 0, n, k, len)) return false;
+
+            try {
+                dst.write(pullChunk, 0, n);
+            }
+            catch (IOException e) {
+                error("IOException when trying to write destination in pull method.", e, k/kyoriKey.getMsgfLen(), getChests(len, kyoriKey), k, len);
+                return false;
+            }
+            k += n;
+        }
+
+        return true;
+    }
+
+    // Packed message on the wire, unpacked into sink as its chests arrive
+    boolean pullUnpacked(Sink sink, long msgLen) {
+        final long packedLen = pullPackedLen;
+        final OutputStream unpacked = pullCodec.decompress(sink);
+        if (!pullChunks(unpacked, packedLen)) return false;
+
         try {
-            this.in.readFully(header);
-            msg = new byte[ByteBuffer.wrap(header).asIntBuffer().get()];
+            unpacked.close();
+            if (sink.count != msgLen)
+                throw new IOException("Message of " + sink.count + " bytes once unpacked, header said " + msgLen + '.');
         }
         catch (IOException e) {
-            error("IOException when trying to get header in pull method.", e, 0, 0, 0, 0);
-            return null;
+            final long nChests = getChests(packedLen, kyoriKey);
+            error("IOException when trying to unpack message in pull method.", e, nChests-1, nChests, packedLen-1, packedLen);
+            return false;
+        }
+
+        return pullEnd();
+    }
+
+    boolean isPullPacked() {
+        return pullPackedLen != -1;
+    }
+
+    // Batch of msgLen bytes split into records, every one whole or none
+    boolean pullRecords(long msgLen) {
+        if (msgLen > Integer.MAX_VALUE) {
+            error("Batch too big for an array in pull method.", null, 0, 0, 0, msgLen);
+            return false;
         }
 
-        // Get all chests
+        final byte[] batch = new byte[(int)msgLen];
+        if (pullPackedLen != -1 ? !pullUnpacked(new Sink(null, batch, 0, msgLen), msgLen) : !(pullChests(batch, 0, batch.length, 0, msgLen) && pullEnd()))
+            return false;
+
+        final int first = records.size();
+        for (int k=0; k < batch.length; ) {
+            final int len = batch.length-k < 4 ? -1 : (batch[k] & 0xff) << 24 | (batch[k+1] & 0xff) << 16 | (batch[k+2] & 0xff) << 8 | batch[k+3] & 0xff;
+            if (len < 0 || len > batch.length-k-4) {
+                while (records.size() > first) records.pollLast();
+                error("Broken record in batch, pull method.", null, 0, 0, k, msgLen);
+                return false;
+            }
+
+            records.add(Arrays.copyOfRange(batch, k+4, k+4+len));
+            k += 4+len;
+        }
+        if (records.size() == first) {
+            error("Empty batch in pull method.", null);
+            return false;
+        }
+
+        return true;
+    }
+
+    boolean isPullBatch() {
+        return pullBatch;
+    }
+
+    byte[] pollRecord() { // Next record of the last batch, null if none left
+        return records.poll();
+    }
+
+    private int takeRecord(byte[] dst, int off) {
+        final byte[] record = records.peek();
+        if (off < 0 || off > dst.length || record.length > dst.length-off) {
+            warn("Destination too small in pull method, record kept for the next pull.");
+            return -1;
+        }
+
+        records.poll();
+        System.arraycopy(record, 0, dst, off, record.length);
+        return record.length;
+    }
+
+    private long takeRecord(OutputStream dst) {
+        final byte[] record = records.poll();
         try {
-            nChests = (int) Math.ceil((double) msg.length / kyoriKey.getMsgfLen());
-            byte[] dataInput = new byte[nChests * kyoriKey.getChestSize()];
-            this.in.readFully(dataInput);
-            in = new ByteArrayInputStream(dataInput);
+            dst.write(record);
+            return record.length;
         }
         catch (IOException e) {
-            error("IOException when trying to get all input data.", e, 0, 0, 0, msg.length);
-            return null;
+            error("IOException when trying to write destination in pull method.", e, 0, 0, 0, record.length);
+            return -1;
         }
+    }
+
+    private long pullHeader() { // -1 on error
+        final long msgLen;
+        try {
+            msgLen = nextHeader();
+        }
+        catch (IOException e) {
+            error("IOException when trying to get header in pull method.", e, 0, 0, 0, 0);
+            return -1;
+        }
+        if (msgLen < 0) {
+            error("Wrong header in pull method.", null, 0, 0, 0, msgLen);
+            return -1;
+        }
+
+        return msgLen;
+    }
+
+    public long nextLength() { // Length of the message the next pull takes, -1 on error. Its header is kept for it
+        receiver();
+        if (!records.isEmpty()) return records.peek().length;
+        if (pullPending == -1) pullPending = pullHeader();
+
+        return pullPending;
+    }
+
+    // Header of the next message, key resizes on the way applied
+    long nextHeader() throws IOException {
+        if (pullPending != -1) {
+            final long msgLen = pullPending;
+            pullPending = -1;
+            return msgLen;
+        }
+
+        long msgLen = readHeader();
+        while (pullResize != -1) {
+            if (!pullExtraKey(msgLen))
+                throw new IOException("Unable to resize key.");
+
+            msgLen = readHeader();
+        }
+
+        return msgLen;
+    }
+
+    // Extra bytes of the next key if it grows, none if it shrinks
+    private boolean pullExtraKey(long extraLen) {
+        final int length = pullResize + kyoriKey.getHashLength();
+        final int chestSize = kyoriKey.getChestSize();
+        if (pullBatch || pullPackedLen != -1 || extraLen != Math.max(0, length-kyoriKey.getLength())) {
+            error("Wrong key resize in pull method.", null, 0, 0, 0, extraLen);
+            return false;
+        }
+
+        final byte[] extra = new byte[(int)extraLen];
+        if (!pullChests(extra, 0, extra.length, 0, extraLen)) return false;
+
+        // Chests of the old size, end() counts them at the new one
+        if (pulling != null) pulling.wireBytes += pulling.chests * (chestSize - 2L*length);
+        kyoriKey.resize(length, extra);
+        return true;
+    }
+
+    // len bytes into dst, done bytes of the whole message already received
+    private boolean pullChests(byte[] dst, int off, int len, long done, long msgLen) {
+
+        // Vars
+        final int nChests = (int)getChests(len, kyoriKey);
+        final long base = done/kyoriKey.getMsgfLen();
+        final long allChests = getChests(msgLen, kyoriKey);
 
         // Any Chest //
         // i -> count chests
-        // j -> count bytes of message per chest
         // k -> count bytes of message per whole message
-        for (int i=0, j, k=0; i < nChests; i++) {
+        int i = 0, k = 0;
+        if (pullParallel != null && nChests > 1) {
+            final int batchChests = ParallelChests.getBatchChests(kyoriKey.getChestSize());
+            final int nOpened = pullTrim && len % kyoriKey.getMsgfLen() != 0 ? nChests-1 : nChests; // trimmed tail comes alone
+
+            while (i < nOpened) {
+                final int c = Math.min(batchChests, nOpened-i);
+                final int n = Math.min(c*kyoriKey.getMsgfLen(), len-k);
+
+                try {
+                    pullParallel.ensureCapacity(c, kyoriKey.getChestSize(), kyoriKey.getLength());
+
+                    final long t = pulling != null ? System.nanoTime() : 0;
+                    in.readFully(pullParallel.getBatch(), 0, c*kyoriKey.getChestSize());
+                    if (pulling != null) pulling.io(t);
+
+                    final int corrupted = pullParallel.open(kyoriKey, dst, off+k, n, c, pulling);
+                    if (corrupted != -1) {
+                        if (pulling != null) pulling.corruptedChest = pulling.chests + corrupted;
+                        error("Hash error: Corrupted Integrity or Wrong Key.", null, base+i+corrupted, allChests, done+k+(long)corrupted*kyoriKey.getMsgfLen(), msgLen);
+                        return false;
+                    }
+                    pulled(c, false);
+                    i += c;
+                    k += n;
+                }
+                catch (IOException e) {
+                    error("IOException when trying to receive data in pull method.", e, base+i, allChests, done+k, msgLen);
+                    return false;
+                }
+            }
+        }
+
+        for (; i < nChests; i++) {
+            final int n = Math.min(kyoriKey.getMsgfLen(), len-k);
 
-            // Receive
             try {
-                in.read(hash);
-                in.read(msgf);
-                in.read(newKey);
-                i++; // Num Chests
+                if (!readChest(dst, off+k, n)) {
+                    error("Hash error: Corrupted Integrity or Wrong Key.", null, base+i, allChests, done+k, msgLen);
+                    return false;
+                }
+                pulled(1, false);
+                k += n;
             }
             catch (IOException e) {
-                error("IOException when trying to receive data in pull method.", e, i, nChests, k, msg.length);
-                return null;
+                error("IOException when trying to receive data in pull method.", e, base+i, allChests, done+k, msgLen);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean pullEnd() {
+        pulled(0, true);
+        return true;
+    }
+
+    // Long-safe chest count of len bytes
+    static long getChests(long len, Key key) {
+        return (len + key.getMsgfLen() - 1) / key.getMsgfLen();
+    }
+
+    // Bytes of message per stream chunk, whole chests of one parallel batch
+    private static int getChunkLen(Key key) {
+        return ParallelChests.getBatchChests(key.getChestSize()) * key.getMsgfLen();
+    }
+
+    // Chest level
+    void sender() { // Fixes roles, sender if still unknown
+        role.sender();
+    }
+
+    void receiver() { // Fixes roles, receiver if still unknown
+        if (role.receiver()) {
+            Key tempKey = apurochiKey;
+            apurochiKey = kyoriKey;
+            kyoriKey = tempKey;
+
+            Hash tempHash = apurochiHash;
+            apurochiHash = kyoriHash;
+            kyoriHash = tempHash;
+
+            KeyState tempState = apurochiState;
+            apurochiState = kyoriState;
+            kyoriState = tempState;
+        }
+    }
+
+    // Key states are persisted every persistEvery chests, or at the end of every message when 0
+    void pushed(int chests, boolean end) {
+        if (pushing != null) pushing.chests += chests;
+        if (apurochiState == null) return;
+
+        pushUnsaved += chests;
+        if (pushUnsaved > 0 && (persistEvery == 0 ? end : pushUnsaved >= persistEvery)) {
+            apurochiState.persist();
+            pushUnsaved = 0;
+        }
+    }
+
+    void pulled(int chests, boolean end) {
+        if (pulling != null) pulling.chests += chests;
+        if (kyoriState == null) return;
+
+        pullUnsaved += chests;
+        if (pullUnsaved > 0 && (persistEvery == 0 ? end : pullUnsaved >= persistEvery)) {
+            kyoriState.persist();
+            pullUnsaved = 0;
+        }
+    }
+
+    // Metered only if a listener or a JFR recording wants it
+    void beginPush() {
+        if (sizing != null) pushStart = System.nanoTime();
+        pushing = null;
+        if (metrics == null && !TunnelEvent.isRecording()) return;
+
+        pushSample.begin();
+        pushing = pushSample;
+    }
+
+    void beginPull() {
+        pulling = null;
+        if (metrics == null && !TunnelEvent.isRecording()) return;
+
+        pullSample.begin();
+        pulling = pullSample;
+    }
+
+    boolean endPush(boolean ok) {
+        if (sizing != null && ok) resizeTo = sizing.next(apurochiKey.getMsgfLen(), pushLen, System.nanoTime()-pushStart);
+        if (pushing != null) {
+            pushing = null;
+            pushSample.end(ok, apurochiKey.getChestSize());
+            if (metrics != null) metrics.onMessage(pushSample);
+        }
+
+        return ok;
+    }
+
+    boolean endPull(boolean ok) {
+        if (pulling != null) {
+            pulling = null;
+            pullSample.end(ok, kyoriKey.getChestSize());
+            if (metrics != null) metrics.onMessage(pullSample);
+        }
+
+        return ok;
+    }
+
+    int getPushMsgfLen() { // Of the next push, a resize on the way included
+        sender();
+        return resizeTo != -1 ? resizeTo : apurochiKey.getMsgfLen();
+    }
+
+    byte[] getPushKey() { // Copy of the key the next push starts with
+        sender();
+        return apurochiKey.getKey();
+    }
+
+    void setPushKey(byte[] key) { // Back to a copy from getPushKey, pushes sealed since never reached the peer
+        apurochiKey.restore(key);
+    }
+
+    int getPullMsgfLen() {
+        receiver();
+        return kyoriKey.getMsgfLen();
+    }
+
+    // Lengths beyond int go after the LONG_HEADER tag, older peers see a wrong header
+    void writeHeader(long msgLen) throws IOException {
+        if (pushing != null) {
+            pushing.bytes = msgLen;
+            pushing.wireBytes += msgLen <= Integer.MAX_VALUE ? 4 : 12;
+        }
+
+        if (msgLen <= Integer.MAX_VALUE) out.writeInt((int)msgLen);
+        else {
+            out.writeInt(LONG_HEADER);
+            out.writeLong(msgLen);
+        }
+    }
+
+    // Chests carry packedLen bytes that codec unpacks into msgLen, older peers see a wrong header
+    void writePackedHeader(long msgLen, long packedLen) throws IOException {
+        if (pushing != null) {
+            pushing.bytes = msgLen;
+            pushing.wireBytes += 21;
+        }
+
+        out.writeInt(PACKED_HEADER);
+        out.writeByte(codec.getId());
+        out.writeLong(msgLen);
+        out.writeLong(packedLen);
+    }
+
+    long readHeader() throws IOException { // msgLen, packed messages set pullPackedLen & pullCodec, batches pullBatch, resizes pullResize
+        final long t = pulling != null ? System.nanoTime() : 0;
+        int header = in.readInt();
+        final long msgLen;
+
+        // Prefix tags, each one at most once
+        pullPackedLen = -1;
+        pullResize = -1;
+        pullBatch = pullTrim = false;
+        while (header == BATCH_HEADER && !pullBatch || header == TRIM_HEADER && !pullTrim || header == RESIZE_HEADER && pullResize == -1) {
+            if (header == BATCH_HEADER)     pullBatch = true;
+            else if (header == TRIM_HEADER) pullTrim = true;
+            else {
+                pullResize = in.readInt();
+                if (pullResize < 1 || pullResize > ChestSizing.MAX_BMPC)
+                    throw new IOException("Wrong key resize to " + pullResize + " bytes per chest.");
+                if (pulling != null) pulling.wireBytes += 4;
             }
 
-            // Decrypt
-            xor(kyoriKey.getKey_ByRef(), hash, msgf);
-            xor(kyoriKey.getKey_ByRef(), newKey);
+            header = in.readInt();
+            if (pulling != null) pulling.wireBytes += 4;
+        }
 
-            // Check integrity
-            if (!Arrays.equals(hash, Hash.create(msgf))) {
-                error("Hash error: Corrupted Integrity or Wrong Key.", null, i, nChests, k, msg.length);
-                return null;
+        if (header == LONG_HEADER) msgLen = in.readLong();
+        else if (header == PACKED_HEADER) {
+            final int id = in.readUnsignedByte();
+            msgLen = in.readLong();
+            pullPackedLen = in.readLong();
+
+            pullCodec = codec != null && codec.getId() == id ? codec : id == Codec.DEFLATE_ID ? Codec.deflate() : null;
+            if (pullCodec == null || pullPackedLen < 0) {
+                pullPackedLen = -1;
+                throw new IOException(pullCodec == null ? "Unknown codec " + id + '.' : "Wrong packed length.");
             }
+        }
+        else msgLen = header;
 
-            // Update key
-            System.arraycopy(newKey, 0, kyoriKey.getKey_ByRef(), 0, kyoriKey.getLength());
+        if (pulling != null) {
+            pulling.io(t);
+            pulling.bytes = msgLen;
+            pulling.wireBytes += header == LONG_HEADER ? 12 : header == PACKED_HEADER ? 21 : 4;
+        }
+        return msgLen;
+    }
 
-            // Building msg...
-            for (j=0; j < msgf.length && k < msg.length; k++, j++)
-                msg[k] = msgf[j];
+    void writeChest(byte[] src, int off, int len) throws IOException {
+        if (pushMsgf == null || pushMsgf.length != apurochiKey.getMsgfLen()) {
+            pushHash = new byte[apurochiKey.getHashLength()];
+            pushMsgf = new byte[apurochiKey.getMsgfLen()];
+            pushNewKeyNoCrypt = new byte[apurochiKey.getLength()];
+            pushNewKey = new byte[apurochiKey.getLength()];
         }
 
-        return msg;
+        // Get piece of msg, last chest keeps the tail of the previous one as padding unless trimmed
+        System.arraycopy(src, off, pushMsgf, 0, len);
+        final int msgfLen = pushTrim && len < pushMsgf.length ? len : pushMsgf.length;
+        final int hashLen = pushHash.length;
+
+        // Generate hash & new key
+        final TunnelMetrics.Sample m = pushing;
+        long t = m != null ? System.nanoTime() : 0;
+        apurochiHash.digest(pushMsgf, 0, msgfLen, pushHash, 0);
+        if (m != null) t = m.hash(t);
+        Key.Keygen.generate(pushNewKeyNoCrypt, random);
+        if (m != null) t = m.keygen(t);
+        System.arraycopy(pushNewKeyNoCrypt, 0, pushNewKey, 0, pushNewKey.length);
+
+        // Encrypt
+        Xor.xor(apurochiKey.getKey_ByRef(), 0, pushHash, 0, hashLen);
+        Xor.xor(apurochiKey.getKey_ByRef(), hashLen, pushMsgf, 0, msgfLen);
+        xor(apurochiKey.getKey_ByRef(), pushNewKey);
+        if (m != null) t = m.xor(t);
+
+        // Update actual key
+        System.arraycopy(pushNewKeyNoCrypt, 0, apurochiKey.getKey_ByRef(), 0, apurochiKey.getLength());
+
+        // Send
+        out.write(pushHash);
+        out.write(pushMsgf, 0, msgfLen);
+        out.write(pushNewKey);
+        if (m != null) {
+            m.io(t);
+            m.wireBytes -= pushMsgf.length - msgfLen;
+        }
+    }
+
+    private void flushChest() throws IOException {
+        final long t = pushing != null ? System.nanoTime() : 0;
+        out.flush();
+        if (pushing != null) pushing.io(t);
     }
 
+    boolean readChest(byte[] dst, int off, int len) throws IOException {
+        final int hashLen = kyoriKey.getHashLength();
+        final int msgfLen = kyoriKey.getMsgfLen();
+        final int keyLen = kyoriKey.getLength();
+        final byte[] key = kyoriKey.getKey_ByRef();
+        final boolean inPlace = len == msgfLen; // full chest, fragment decrypted at its final offset
+        final int fragLen = pullTrim ? len : msgfLen; // bytes of fragment on the wire
+
+        if (pullChest == null || pullChest.length != kyoriKey.getChestSize())
+            pullChest = new byte[kyoriKey.getChestSize()];
+
+        // Receive
+        final TunnelMetrics.Sample m = pulling;
+        long t = m != null ? System.nanoTime() : 0;
+        if (inPlace) {
+            in.readFully(pullChest, 0, hashLen);
+            in.readFully(dst, off, msgfLen);
+            in.readFully(pullChest, keyLen, keyLen);
+        }
+        else {
+            in.readFully(pullChest, 0, hashLen+fragLen);
+            in.readFully(pullChest, keyLen, keyLen);
+        }
+        if (m != null) {
+            t = m.io(t);
+            m.wireBytes -= msgfLen - fragLen;
+        }
+
+        // Decrypt
+        Xor.xor(key, 0, pullChest, 0, hashLen);
+        if (inPlace) Xor.xor(key, hashLen, dst, off, msgfLen);
+        else         Xor.xor(key, hashLen, pullChest, hashLen, fragLen);
+        Xor.xor(key, 0, pullChest, keyLen, keyLen);
+        if (m != null) t = m.xor(t);
+
+        // Check integrity
+        final boolean whole = inPlace ? kyoriHash.verify(dst, off, msgfLen, pullChest, 0) : kyoriHash.verify(pullChest, hashLen, fragLen, pullChest, 0);
+        if (m != null) m.hash(t);
+        if (!whole) {
+            if (m != null) m.corruptedChest = m.chests;
+            return false;
+        }
+
+        // Update key
+        System.arraycopy(pullChest, keyLen, key, 0, keyLen);
+
+        // Building msg...
+        if (!inPlace) System.arraycopy(pullChest, hashLen, dst, off, len);
+
+        return true;
+    }
+
+    public boolean flush() {
+        try {
+            out.flush();
+            return true;
+        }
+        catch (IOException e) { return false; }
+    }
+
+    // Keys
     public boolean saveKeys() {
+        if (!saveKeys) return false;
+
+        saving.lock();
         try {
-            if (whoami == 0)      Key.pack(apurochiKey, kyoriKey);
-            else if(whoami == 1)  Key.pack(kyoriKey, apurochiKey);
+            if (apurochiState != null && kyoriState != null) {
+                apurochiState.persist();
+                kyoriState.persist();
+                return true;
+            }
+
+            if (keyStore != null) keyStore.save(peer);
+            else                  role.pack(apurochiKey, kyoriKey);
 
             return true;
         }
         catch (IOException e) { return false; }
+        finally { saving.unlock(); }
     }
 
     public boolean close(boolean inClose, boolean outClose, boolean logClose) { // Close streams & save keys
         try {
-            saveKeys();
+            if (keyStore != null) keyStore.release(peer); // written back with next batch
+            else                  saveKeys();
 
             if (inClose) in.close();
             if (outClose) out.close();
@@ -281,29 +1115,71 @@ public final class Tunnel {
         return close(true, true, true);
     }
 
-    private void error(String issue, Exception e, int i, int nChests, int k, int msgLen) {
+    void error(String issue, Exception e) {
+        error(issue, e, 0, 0, 0, 0);
+    }
+
+    private void error(String issue, Exception e, long i, long nChests, long k, long msgLen) {
         log.println("------------------------------------------------------------");
         log.println(issue);
-        log.println("Time:              " + sdf.format(cal.getTime()));
+        log.println("Time:              " + TIME.format(LocalDateTime.now()));
         log.println("Actual keys saved: " + (saveKeys() ? "Yes" : "No"));
-        log.println("Actual chests:     " + i+1 + '/' + nChests);
-        log.println("Actual bytes msg:  " + k+1 + '/' + msgLen);
+        log.println("Actual chests:     " + (i+1) + '/' + nChests);
+        log.println("Actual bytes msg:  " + (k+1) + '/' + msgLen);
         log.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
         if (e != null) e.printStackTrace(log);
     }
 
+    private void warn(String issue) { // Nothing pulled, the message waits for the next pull
+        log.println("------------------------------------------------------------");
+        log.println(issue);
+        log.println("Time:              " + TIME.format(LocalDateTime.now()));
+        log.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+    }
+
     public static void xor(byte[] key, byte[] arr) {
-        for (int i=0; i < key.length; i++)
-            arr[i] ^= key[i];
+        Xor.xor(key, 0, arr, 0, key.length);
     }
 
     public static void xor(byte[] key, byte[] arr1, byte[] arr2) {
-        int k=0, i;
+        Xor.xor(key, 0, arr1, 0, arr1.length);
+        Xor.xor(key, arr1.length, arr2, 0, arr2.length);
+    }
 
-        for (i=0; i < arr1.length; i++, k++)
-            arr1[i] ^= key[k];
+    // Unpacked bytes into a stream or an array, never more than the header said
+    static final class Sink extends OutputStream {
+
+        /* Attributes */
+        private final OutputStream out;
+        private final byte[] arr;
+        private final int off;
+        private final long max;
+        long count;
 
-        for (i=0; i < arr2.length; i++, k++)
-            arr2[i] ^= key[k];
+
+        /* Constructors */
+        Sink(OutputStream out, byte[] arr, int off, long max) {
+            this.out = out;
+            this.arr = arr;
+            this.off = off;
+            this.max = max;
+        }
+
+
+        /* Methods */
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{ (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (count+len > max)
+                throw new IOException("Message longer once unpacked than its header said.");
+
+            if (out != null) out.write(b, off, len);
+            else             System.arraycopy(b, off, arr, this.off+(int)count, len);
+            count += len;
+        }
     }
 }
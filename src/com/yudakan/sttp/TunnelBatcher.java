@@ -0,0 +1,187 @@
+package com.yudakan.sttp;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelBatcher Class
+ *
+ * Coalesces small messages into one batch of length-prefixed records, so
+ * many tiny pushes share chests instead of padding one each. A batch is
+ * sent when it reaches maxBytes or when its first message has waited
+ * linger, whichever comes first. The peer's pull gives records back as
+ * the messages they were, in order. Messages of maxBytes or more go out
+ * on their own, after whatever was queued before them.
+ * The tunnel must not be pushed to but through its batcher.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public final class TunnelBatcher implements Closeable {
+
+    /* Attributes */
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+    public static final long DEFAULT_LINGER_MILLIS = 5;
+    private static final int RECORD_HEADER_LEN = 4;
+
+    private final Tunnel tunnel;
+    private final int maxBytes;
+    private final long lingerNanos;
+    private final ScheduledExecutorService timer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private byte[] batch;
+    private int count;
+    private ScheduledFuture<?> lingering;
+    private boolean failed, closed;
+
+
+    /* Constructors */
+    private TunnelBatcher(Builder builder) {
+        this.tunnel = builder.tunnel;
+        this.maxBytes = builder.maxBytes;
+        this.lingerNanos = builder.lingerNanos;
+        this.batch = new byte[Math.min(maxBytes, 4 * 1024)];
+        this.timer = Executors.newSingleThreadScheduledExecutor(TunnelRunner.threadFactory("sttp-batcher-", false));
+    }
+
+    public static class Builder {
+
+        /* Attributes */
+        private Tunnel tunnel;
+        private int maxBytes;
+        private long lingerNanos;
+
+
+        /* Constructors */
+        public Builder() {
+            maxBytes = DEFAULT_MAX_BYTES;
+            lingerNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LINGER_MILLIS);
+        }
+
+
+        /* Methods */
+        public Builder setTunnel(Tunnel tunnel) {
+            this.tunnel = tunnel;
+            return this;
+        }
+
+        public Builder setMaxBytes(int maxBytes) throws IllegalArgumentException { // Batch sent once it holds this much
+            if (maxBytes <= RECORD_HEADER_LEN)
+                throw new IllegalArgumentException("Max bytes must hold at least one record header.");
+
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        public Builder setLinger(long time, TimeUnit unit) throws IllegalArgumentException { // Longest wait of a queued message
+            if (time < 0)
+                throw new IllegalArgumentException("Linger can't be negative.");
+
+            this.lingerNanos = unit.toNanos(time);
+            return this;
+        }
+
+        public TunnelBatcher build() throws IllegalStateException {
+            if (tunnel == null)
+                throw new IllegalStateException("Tunnel not specified.");
+
+            return new TunnelBatcher(this);
+        }
+    }
+
+
+    /* Getters */
+    public int getQueuedBytes() {
+        lock.lock();
+        try { return count; }
+        finally { lock.unlock(); }
+    }
+
+
+    /* Methods */
+    public boolean push(byte[] msg) {
+        return push(msg, 0, msg.length);
+    }
+
+    // Queues a copy of msg, false if the tunnel failed before
+    public boolean push(byte[] msg, int off, int len) {
+        lock.lock();
+        try {
+            if (failed || closed) return false;
+
+            // Too big to share chests
+            if (RECORD_HEADER_LEN + len >= maxBytes) {
+                if (!send()) return false;
+                failed = !tunnel.push(msg, off, len);
+                return !failed;
+            }
+
+            if (count + RECORD_HEADER_LEN + len > maxBytes && !send()) return false;
+            append(msg, off, len);
+
+            if (count >= maxBytes) return send();
+            if (lingering == null) {
+                if (lingerNanos == 0) return send();
+                lingering = timer.schedule(this::flush, lingerNanos, TimeUnit.NANOSECONDS);
+            }
+
+            return true;
+        }
+        finally { lock.unlock(); }
+    }
+
+    // Sends what is queued now, false if the tunnel failed
+    public boolean flush() {
+        lock.lock();
+        try {
+            return !failed && send() && tunnel.flush();
+        }
+        finally { lock.unlock(); }
+    }
+
+    // Sends what is queued, tunnel stays open
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+
+            flush();
+            closed = true;
+        }
+        finally { lock.unlock(); }
+
+        timer.shutdownNow();
+    }
+
+    private void append(byte[] msg, int off, int len) {
+        if (batch.length < count + RECORD_HEADER_LEN + len)
+            batch = Arrays.copyOf(batch, Math.min(maxBytes, Math.max(batch.length*2, count + RECORD_HEADER_LEN + len)));
+
+        batch[count]   = (byte)(len >>> 24);
+        batch[count+1] = (byte)(len >>> 16);
+        batch[count+2] = (byte)(len >>> 8);
+        batch[count+3] = (byte)len;
+        System.arraycopy(msg, off, batch, count + RECORD_HEADER_LEN, len);
+        count += RECORD_HEADER_LEN + len;
+    }
+
+    private boolean send() { // Lock held
+        if (lingering != null) {
+            lingering.cancel(false);
+            lingering = null;
+        }
+        if (count == 0) return true;
+
+        failed = !tunnel.pushBatch(batch, 0, count);
+        count = 0;
+        return !failed;
+    }
+}
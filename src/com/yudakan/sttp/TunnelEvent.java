@@ -0,0 +1,91 @@
+package com.yudakan.sttp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelEvent Class
+ *
+ * JFR event of one message pushed or pulled through a {@link Tunnel},
+ * with the same figures a {@link TunnelMetrics} listener gets. Enable
+ * it in a recording with -XX:StartFlightRecording or jcmd JFR.start.
+ *
+ * @author yka
+ * @version 1.0
+ */
+@Name("com.yudakan.sttp.Message")
+@Label("STTP Message")
+@Category("STTP")
+@Description("Message pushed or pulled through a tunnel")
+final class TunnelEvent extends jdk.jfr.Event {
+
+    /* Attributes */
+    private static final EventType TYPE = EventType.getEventType(TunnelEvent.class);
+
+    @Label("Push")
+    boolean push;
+
+    @Label("Ok")
+    boolean ok;
+
+    @Label("Message Length")
+    @DataAmount
+    long bytes;
+
+    @Label("Wire Length")
+    @DataAmount
+    long wireBytes;
+
+    @Label("Chests")
+    long chests;
+
+    @Label("Corrupted Chest")
+    @Description("First chest whose hash did not match, -1 if none")
+    long corruptedChest;
+
+    @Label("Hash Time")
+    @Timespan
+    long hashNanos;
+
+    @Label("Keygen Time")
+    @Timespan
+    long keygenNanos;
+
+    @Label("XOR Time")
+    @Timespan
+    long xorNanos;
+
+    @Label("I/O Wait")
+    @Timespan
+    long ioNanos;
+
+
+    /* Methods */
+    static boolean isRecording() {
+        return TYPE.isEnabled();
+    }
+
+    void commit(TunnelMetrics.Sample sample) {
+        end();
+        if (!shouldCommit()) return;
+
+        push = sample.push;
+        ok = sample.ok;
+        bytes = sample.bytes;
+        wireBytes = sample.wireBytes;
+        chests = sample.chests;
+        corruptedChest = sample.corruptedChest;
+        hashNanos = sample.hashNanos;
+        keygenNanos = sample.keygenNanos;
+        xorNanos = sample.xorNanos;
+        ioNanos = sample.ioNanos;
+        commit();
+    }
+}
@@ -0,0 +1,162 @@
+package com.yudakan.sttp;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelInputStream Class
+ *
+ * Decrypts bytes chest by chest as they are read. Reads the messages sent
+ * by a {@link TunnelOutputStream} until its empty end marker. Only one
+ * chest of plaintext is held in memory at a time, but for compressed
+ * messages, which are unpacked whole.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public class TunnelInputStream extends InputStream {
+
+    /* Attributes */
+    private final Tunnel tunnel;
+    private byte[] buf;
+    private byte[] data; // buf, or a whole message unpacked or a record
+    private int pos, count;
+    private long remaining; // bytes of actual message still on the wire
+    private boolean eof, closed;
+
+
+    /* Constructors */
+    public TunnelInputStream(Tunnel tunnel) {
+        this.tunnel = tunnel;
+        this.buf = new byte[tunnel.getPullMsgfLen()];
+        this.data = buf;
+    }
+
+
+    /* Methods */
+    @Override
+    public int read() throws IOException {
+        if (!fill()) return -1;
+        return data[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off+len > b.length)
+            throw new IndexOutOfBoundsException();
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+
+        int n = Math.min(len, count-pos);
+        System.arraycopy(data, pos, b, off, n);
+        pos += n;
+
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return count-pos;
+    }
+
+    @Override
+    public void close() { // Tunnel stays open
+        closed = true;
+    }
+
+    private boolean fill() throws IOException {
+        ensureOpen();
+        if (pos < count) return true;
+        if (eof) return false;
+
+        // New message, records of the last batch first
+        if (remaining == 0) {
+            final byte[] record = tunnel.pollRecord();
+            if (record != null) return take(record);
+
+            tunnel.beginPull();
+            remaining = tunnel.nextHeader();
+
+            if (remaining < 0) {
+                tunnel.endPull(false);
+                tunnel.error("Wrong header in input stream.", null);
+                throw new IOException("Wrong header in input stream.");
+            }
+            if (remaining == 0) {
+                tunnel.endPull(true);
+                eof = true;
+                return false;
+            }
+            if (tunnel.isPullBatch()) {
+                final boolean ok = tunnel.pullRecords(remaining);
+                tunnel.endPull(ok);
+                if (!ok)
+                    throw new IOException("Unable to pull batch.");
+
+                remaining = 0;
+                return take(tunnel.pollRecord());
+            }
+            if (tunnel.isPullPacked()) return unpack();
+            if (buf.length != tunnel.getPullMsgfLen()) buf = new byte[tunnel.getPullMsgfLen()]; // key resized in band
+        }
+
+        // Next chest
+        int n = (int)Math.min(buf.length, remaining);
+        if (!tunnel.readChest(buf, 0, n)) {
+            tunnel.endPull(false);
+            tunnel.error("Hash error: Corrupted Integrity or Wrong Key.", null);
+            throw new IOException("Hash error: Corrupted Integrity or Wrong Key.");
+        }
+        remaining -= n;
+        tunnel.pulled(1, remaining == 0);
+        if (remaining == 0) tunnel.endPull(true);
+        data = buf;
+        pos = 0;
+        count = n;
+
+        return true;
+    }
+
+    private boolean take(byte[] record) { // Empty records end the stream as empty messages do
+        if (record.length == 0) {
+            eof = true;
+            return false;
+        }
+
+        data = record;
+        pos = 0;
+        count = record.length;
+
+        return true;
+    }
+
+    private boolean unpack() throws IOException {
+        if (remaining > Integer.MAX_VALUE) {
+            tunnel.endPull(false);
+            tunnel.error("Packed message too big for an array in input stream.", null);
+            throw new IOException("Packed message too big for an array in input stream.");
+        }
+
+        final byte[] msg = new byte[(int)remaining];
+        if (!tunnel.pullUnpacked(new Tunnel.Sink(null, msg, 0, remaining), remaining)) {
+            tunnel.endPull(false);
+            throw new IOException("Unable to unpack message.");
+        }
+        tunnel.endPull(true);
+
+        data = msg;
+        pos = 0;
+        count = msg.length;
+        remaining = 0;
+
+        return true;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed.");
+    }
+}
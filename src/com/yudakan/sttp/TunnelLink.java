@@ -0,0 +1,598 @@
+package com.yudakan.sttp;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelLink Class
+ *
+ * Socket under a {@link Tunnel} that outlives its connections. Both ends
+ * count the bytes they received and keep the last replay bytes they sent.
+ * When a read or a write breaks, the link gets a new socket from its
+ * Reconnector, both ends trade how far they got and each one sends again
+ * what the other missed, the very same encrypted bytes, so no key is used
+ * twice. The tunnel goes on from the last chest it verified, in the middle
+ * of a message if it was, and never sees the drop. Replay must be larger
+ * than the bytes in flight, socket buffers of both ends included.
+ * A thread per link reads the socket into an inbox, so drops are seen
+ * and resumed even while nobody pulls, what the other end missed is sent
+ * again from a thread of its own while it reads. Bytes go in frames:
+ * [ len (4) | bytes ], a len of {@link #CLOSE} ends the link for good,
+ * the end of stream of a connection without it is taken as a drop. Both
+ * ends say hello on the first connection and pick a link id, a connection
+ * with another id is not resumed. Handshakes wait timeout at most, a
+ * link that couldn't be resumed stays broken.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public final class TunnelLink implements Closeable {
+
+    /* Attributes */
+    public static final int DEFAULT_REPLAY = 4 * 1024 * 1024;
+    public static final int DEFAULT_ATTEMPTS = 5;
+    public static final long DEFAULT_RETRY_MILLIS = 1000;
+    public static final int DEFAULT_TIMEOUT_MILLIS = 10_000;
+    static final int CLOSE = -1; // frame length of a link closed on purpose
+    private static final int INBOX_SIZE = 64 * 1024;
+    private static final long MAGIC = 0x535454504C494E4BL; // "STTPLINK", first bytes of every connection
+
+    private final Reconnector reconnector;
+    private final int attempts, timeoutMillis;
+    private final long retryNanos;
+    private final long nonce = ThreadLocalRandom.current().nextLong(); // half of the link id
+    private long id;
+    private volatile IOException lost; // why the link can't go on, once it can't
+    private final byte[] replay; // ring of the last bytes sent
+    private final ReentrantLock writeLock = new ReentrantLock(), readLock = new ReentrantLock(); // always write then read
+    private final InputStream in = new In();
+    private final OutputStream out = new Out();
+    private volatile Connection conn;
+    private volatile boolean closed;
+    private long sent, received; // bytes since the link was opened
+    private int resumes;
+
+    // Received, not yet read: ring filled by the reader thread
+    private final byte[] inbox = new byte[INBOX_SIZE];
+    private final ReentrantLock inboxLock = new ReentrantLock();
+    private final Condition notEmpty = inboxLock.newCondition(), notFull = inboxLock.newCondition();
+    private int head, count;
+    private boolean ended;
+    private IOException failure;
+
+
+    /* Constructors */
+    private TunnelLink(Builder builder) throws IOException {
+        this.reconnector = builder.reconnector;
+        this.attempts = builder.attempts;
+        this.retryNanos = builder.retryNanos;
+        this.timeoutMillis = builder.timeoutMillis;
+        this.replay = new byte[builder.replay];
+        this.conn = new Connection(builder.socket);
+        conn.out.write(ByteBuffer.allocate(16).putLong(MAGIC).putLong(nonce).array()); // hello
+
+        Thread reader = TunnelRunner.threadFactory("sttp-link-", false).newThread(this::receive);
+        reader.start();
+    }
+
+    public static class Builder {
+
+        /* Attributes */
+        private Socket socket;
+        private Reconnector reconnector;
+        private int replay, attempts, timeoutMillis;
+        private long retryNanos;
+
+
+        /* Constructors */
+        public Builder() {
+            replay = DEFAULT_REPLAY;
+            attempts = DEFAULT_ATTEMPTS;
+            retryNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_RETRY_MILLIS);
+            timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+        }
+
+
+        /* Methods */
+        public Builder setSocket(Socket socket) { // First connection
+            this.socket = socket;
+            return this;
+        }
+
+        public Builder setReconnector(Reconnector reconnector) { // Next ones, after a drop
+            this.reconnector = reconnector;
+            return this;
+        }
+
+        public Builder setReplay(int bytes) throws IllegalArgumentException { // Last bytes sent kept for the peer
+            if (bytes < 2)
+                throw new IllegalArgumentException("Replay must keep at least 2 bytes.");
+
+            this.replay = bytes;
+            return this;
+        }
+
+        public Builder setRetry(int attempts, long delay, TimeUnit unit) throws IllegalArgumentException { // Per drop, delay grows with every attempt
+            if (attempts < 1)
+                throw new IllegalArgumentException("Attempts must be a natural number.");
+            if (delay < 0)
+                throw new IllegalArgumentException("Delay can't be negative.");
+
+            this.attempts = attempts;
+            this.retryNanos = unit.toNanos(delay);
+            return this;
+        }
+
+        public Builder setTimeout(long timeout, TimeUnit unit) throws IllegalArgumentException { // Of hellos & handshakes, a half-open connection is a failed attempt after it
+            final long millis = unit.toMillis(timeout);
+            if (millis < 1 || millis > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Timeout goes from 1 ms to " + Integer.MAX_VALUE + " ms.");
+
+            this.timeoutMillis = (int)millis;
+            return this;
+        }
+
+        public TunnelLink build() throws IllegalStateException, IOException {
+            if (socket == null)
+                throw new IllegalStateException("Socket not specified.");
+            if (reconnector == null)
+                throw new IllegalStateException("Reconnector not specified.");
+
+            return new TunnelLink(this);
+        }
+    }
+
+    // New connection to the same peer: one end dials, the other one accepts
+    @FunctionalInterface
+    public interface Reconnector {
+
+        Socket reconnect() throws IOException;
+
+        static Reconnector dial(String host, int port) {
+            return dial(host, port, DEFAULT_TIMEOUT_MILLIS);
+        }
+
+        static Reconnector dial(String host, int port, int timeoutMillis) { // Connect timeout
+            return () -> {
+                final Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+                    return socket;
+                }
+                catch (IOException e) {
+                    closeQuietly(socket);
+                    throw e;
+                }
+            };
+        }
+
+        // Give it a timeout, a peer gone for good never dials, & a listener of its own: any other connection is closed
+        static Reconnector accept(ServerSocket serverSocket) {
+            return serverSocket::accept;
+        }
+    }
+
+
+    /* Getters */
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    public int getResumes() { // Connections resumed so far
+        writeLock.lock();
+        try { return resumes; }
+        finally { writeLock.unlock(); }
+    }
+
+
+    /* Methods */
+    @Override
+    public void close() { // The peer is told, unless the link is broken or busy for longer than timeout
+        if (closed) return;
+        closed = true;
+
+        try {
+            if (lost == null && writeLock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                try {
+                    final Connection c = conn;
+                    if (c.ready(timeoutMillis)) {
+                        c.out.write(ByteBuffer.allocate(4).putInt(CLOSE).array());
+                        c.out.flush();
+                        c.socket.shutdownOutput();
+                    }
+                }
+                finally { writeLock.unlock(); }
+            }
+        }
+        catch (IOException e) { /* peer takes it as a drop */ }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        closeQuietly(conn.socket);
+        end(null);
+    }
+
+    // Reader thread: socket into inbox until the link closes or can't be resumed
+    private void receive() {
+        final byte[] buf = new byte[INBOX_SIZE/4];
+
+        try {
+            hello();
+        }
+        catch (IOException e) {
+            lost = e;
+            end(e);
+            return;
+        }
+
+        while (!closed) {
+            final Connection c = conn;
+            final int n;
+
+            readLock.lock();
+            try {
+                if (c.left == 0) {
+                    final int len = c.in.readInt();
+                    if (len == CLOSE) {
+                        lost = new IOException("Link closed by peer.");
+                        closeQuietly(c.socket);
+                        end(null);
+                        return;
+                    }
+                    if (len < 1) throw new IOException("Broken frame.");
+                    c.left = len;
+                }
+
+                n = c.in.read(buf, 0, Math.min(buf.length, c.left));
+                if (n == -1) throw new EOFException("Connection ended.");
+                c.left -= n;
+                received += n;
+            }
+            catch (IOException e) {
+                readLock.unlock(); // resume takes the write lock first
+                try {
+                    if (!closed) resume(c, e);
+                    continue;
+                }
+                catch (IOException ex) {
+                    end(ex);
+                    return;
+                }
+                finally { readLock.lock(); }
+            }
+            finally { readLock.unlock(); }
+
+            if (!put(buf, n)) return;
+        }
+    }
+
+    private boolean put(byte[] b, int len) { // false once the link ended
+        inboxLock.lock();
+        try {
+            for (int k=0; k < len; ) {
+                while (count == inbox.length && !ended) notFull.awaitUninterruptibly();
+                if (ended) return false;
+
+                final int tail = (head+count) % inbox.length;
+                final int n = Math.min(len-k, Math.min(inbox.length-count, inbox.length-tail));
+                System.arraycopy(b, k, inbox, tail, n);
+                count += n;
+                k += n;
+                notEmpty.signalAll();
+            }
+            return true;
+        }
+        finally { inboxLock.unlock(); }
+    }
+
+    private void end(IOException e) {
+        inboxLock.lock();
+        try {
+            if (ended) return;
+
+            ended = true;
+            failure = e;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        }
+        finally { inboxLock.unlock(); }
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        inboxLock.lock();
+        try {
+            while (count == 0 && !ended) notEmpty.await();
+            if (count == 0) {
+                if (failure != null) throw new IOException("Link broken.", failure);
+                return -1;
+            }
+
+            final int n = Math.min(len, Math.min(count, inbox.length-head));
+            System.arraycopy(inbox, head, b, off, n);
+            head = (head+n) % inbox.length;
+            count -= n;
+            notFull.signalAll();
+
+            return n;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading link.");
+        }
+        finally { inboxLock.unlock(); }
+    }
+
+    // Peer's hello, link id is both halves
+    private void hello() throws IOException {
+        readLock.lock();
+        try {
+            final Connection c = conn;
+            c.socket.setSoTimeout(timeoutMillis);
+            if (c.in.readLong() != MAGIC)
+                throw new IOException("Peer is not a link.");
+
+            id = nonce ^ c.in.readLong();
+            c.socket.setSoTimeout(0);
+        }
+        finally { readLock.unlock(); }
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        writeLock.lock();
+        try {
+            if (lost != null) throw new IOException("Link lost.", lost);
+
+            // Slices of half the replay, a slice is whole in it until the next one is sent
+            final int slice = replay.length/2;
+            for (int k=0; k < len; ) {
+                final int n = Math.min(slice, len-k);
+                keep(b, off+k, n);
+
+                final Connection c = conn;
+                try {
+                    c.ready(0);
+                    frame(c.out, b, off+k, n);
+                }
+                catch (IOException e) { // Peer gets the slice from replay
+                    if (closed) throw e;
+                    resume(c, e);
+                }
+                k += n;
+            }
+        }
+        finally { writeLock.unlock(); }
+    }
+
+    private void flush() throws IOException {
+        writeLock.lock();
+        try {
+            if (lost != null) throw new IOException("Link lost.", lost);
+
+            final Connection c = conn;
+            try {
+                c.ready(0);
+                c.out.flush();
+            }
+            catch (IOException e) {
+                if (closed) throw e;
+                resume(c, e);
+            }
+        }
+        finally { writeLock.unlock(); }
+    }
+
+    // New connection instead of broken, unless another thread did it already or every attempt failed
+    private void resume(Connection broken, IOException cause) throws IOException {
+        closeQuietly(broken.socket);
+
+        writeLock.lock();
+        readLock.lock();
+        try {
+            if (conn != broken) return;
+            if (lost != null) throw new IOException("Link lost.", lost);
+
+            IOException last = cause;
+            boolean foreign = false;
+            for (int i=0; i < attempts && !closed; i++) {
+                Socket socket = null;
+                try {
+                    if (i > 0 && !foreign) TimeUnit.NANOSECONDS.sleep(retryNanos*i); // another link's connection, next one right away
+                    foreign = false;
+
+                    socket = reconnector.reconnect();
+                    final Connection c = new Connection(socket);
+                    foreign = !handshake(c);
+                    if (foreign) throw new IOException("Connection is not a resume of this link.");
+
+                    conn = c;
+                    resumes++;
+                    return;
+                }
+                catch (IOException e) {
+                    closeQuietly(socket);
+                    last = e;
+                }
+                catch (InterruptedException e) {
+                    closeQuietly(socket);
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            lost = new IOException("Unable to resume link after " + attempts + " attempts.", last);
+            throw lost;
+        }
+        finally {
+            readLock.unlock();
+            writeLock.unlock();
+        }
+    }
+
+    // Both ends tell how far they got, then send again what the other one missed. False if c belongs to another link
+    private boolean handshake(Connection c) throws IOException {
+        c.socket.setSoTimeout(timeoutMillis);
+        c.out.write(ByteBuffer.allocate(24).putLong(MAGIC).putLong(id).putLong(received).array());
+        c.out.flush();
+
+        if (c.in.readLong() != MAGIC || c.in.readLong() != id) return false;
+
+        final long peerReceived = c.in.readLong();
+        final long kept = Math.min(sent, replay.length);
+        if (peerReceived > sent || peerReceived < sent-kept)
+            throw new IOException("Peer got " + peerReceived + " bytes, replay keeps them from " + (sent-kept) + " to " + sent + '.');
+        c.socket.setSoTimeout(0);
+
+        // Ring, maybe in two pieces. Sent while this end reads, both may have more in flight than socket buffers take
+        final byte[] missed = new byte[(int)(sent-peerReceived)];
+        for (long k=peerReceived; k < sent; ) {
+            final int pos = (int)(k % replay.length);
+            final int n = (int)Math.min(sent-k, replay.length-pos);
+            System.arraycopy(replay, pos, missed, (int)(k-peerReceived), n);
+            k += n;
+        }
+        if (missed.length > 0) c.replay(missed, replay.length/2);
+
+        return true;
+    }
+
+    private static void frame(OutputStream out, byte[] b, int off, int len) throws IOException {
+        out.write(ByteBuffer.allocate(4).putInt(len).array());
+        out.write(b, off, len);
+    }
+
+    private void keep(byte[] b, int off, int len) { // len never above replay length
+        final int pos = (int)(sent % replay.length);
+        final int n = Math.min(len, replay.length-pos);
+        System.arraycopy(b, off, replay, pos, n);
+        System.arraycopy(b, off+n, replay, 0, len-n);
+        sent += len;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) return;
+
+        try { socket.close(); }
+        catch (IOException e) { /* already gone */ }
+    }
+
+    private static final class Connection {
+
+        /* Attributes */
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+        int left; // bytes of the frame being read
+        private volatile Thread replayer;
+        private volatile IOException replayFailure;
+
+
+        /* Constructors */
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+
+
+        /* Methods */
+        void replay(byte[] missed, int slice) {
+            replayer = TunnelRunner.threadFactory("sttp-replay-", false).newThread(() -> {
+                try {
+                    for (int k=0; k < missed.length; k += slice) frame(out, missed, k, Math.min(slice, missed.length-k));
+                    out.flush();
+                }
+                catch (IOException e) {
+                    replayFailure = e;
+                }
+            });
+            replayer.start();
+        }
+
+        boolean ready(long millis) throws IOException { // Replay sent, 0 waits for good. False if still sending after millis
+            final Thread t = replayer;
+            if (t == null) return true;
+
+            try { t.join(millis); }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while replaying.");
+            }
+            if (t.isAlive()) return false;
+            if (replayFailure != null) throw new IOException("Replay failed.", replayFailure);
+
+            replayer = null;
+            return true;
+        }
+    }
+
+    private final class In extends InputStream {
+
+        /* Methods */
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off+len > b.length)
+                throw new IndexOutOfBoundsException();
+            if (len == 0) return 0;
+
+            return TunnelLink.this.read(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            TunnelLink.this.close();
+        }
+    }
+
+    private final class Out extends OutputStream {
+
+        /* Methods */
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{ (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off+len > b.length)
+                throw new IndexOutOfBoundsException();
+
+            TunnelLink.this.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            TunnelLink.this.flush();
+        }
+
+        @Override
+        public void close() {
+            TunnelLink.this.close();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.yudakan.sttp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelMetrics Interface
+ *
+ * Listens to the messages going through a {@link Tunnel}: bytes, chests
+ * and where their time went, hashing, key generation, XOR or waiting on
+ * the streams. A tunnel without listener and without a JFR recording of
+ * {@link TunnelEvent} takes no time at all, only a null check per chest.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public interface TunnelMetrics {
+
+    /* Methods */
+    // Once per message pushed or pulled, whole or not. sample is reused, read it before returning
+    void onMessage(Sample sample);
+
+    // Totals of every tunnel it listens to
+    static Counters counters() {
+        return new Counters();
+    }
+
+    final class Sample {
+
+        /* Attributes */
+        boolean push, ok;
+        long bytes, wireBytes, chests, corruptedChest;
+        long hashNanos, keygenNanos, xorNanos, ioNanos, startNanos, totalNanos;
+        TunnelEvent event; // only while a JFR recording wants it
+
+
+        /* Constructors */
+        Sample(boolean push) {
+            this.push = push;
+        }
+
+
+        /* Getters */
+        public boolean isPush() {
+            return push;
+        }
+
+        public boolean isOk() {
+            return ok;
+        }
+
+        public long getBytes() { // Message length
+            return bytes;
+        }
+
+        public long getWireBytes() { // Header & chests through the stream
+            return wireBytes;
+        }
+
+        public long getChests() {
+            return chests;
+        }
+
+        public long getCorruptedChest() { // -1 if every chest was whole
+            return corruptedChest;
+        }
+
+        public long getHashNanos() { // With parallel chests, the pool work: hash & encryption of hash and fragment
+            return hashNanos;
+        }
+
+        public long getKeygenNanos() { // With parallel chests, the whole key chain
+            return keygenNanos;
+        }
+
+        public long getXorNanos() {
+            return xorNanos;
+        }
+
+        public long getIoNanos() { // Waiting on reads, writes & flushes
+            return ioNanos;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+
+        /* Methods */
+        void begin() {
+            ok = false;
+            bytes = wireBytes = chests = 0;
+            corruptedChest = -1;
+            hashNanos = keygenNanos = xorNanos = ioNanos = 0;
+            startNanos = System.nanoTime();
+
+            if (TunnelEvent.isRecording()) {
+                event = new TunnelEvent();
+                event.begin();
+            }
+        }
+
+        void end(boolean ok, int chestSize) {
+            this.ok = ok;
+            this.wireBytes += chests*chestSize; // headers & trimmed tails counted as they went
+            this.totalNanos = System.nanoTime() - startNanos;
+
+            if (event != null) {
+                event.commit(this);
+                event = null;
+            }
+        }
+
+        // Laps, since is the end of the previous one
+        long hash(long since) {
+            final long now = System.nanoTime();
+            hashNanos += now - since;
+            return now;
+        }
+
+        long keygen(long since) {
+            final long now = System.nanoTime();
+            keygenNanos += now - since;
+            return now;
+        }
+
+        long xor(long since) {
+            final long now = System.nanoTime();
+            xorNanos += now - since;
+            return now;
+        }
+
+        long io(long since) {
+            final long now = System.nanoTime();
+            ioNanos += now - since;
+            return now;
+        }
+
+        @Override
+        public String toString() {
+            return (push ? "push " : "pull ") + bytes + " bytes, " + chests + " chests, " + (ok ? "ok" : "failed")
+                    + (corruptedChest != -1 ? " at corrupted chest " + corruptedChest : "")
+                    + ", hash " + hashNanos/1000 + " us, keygen " + keygenNanos/1000 + " us, xor " + xorNanos/1000
+                    + " us, io " + ioNanos/1000 + " us, total " + totalNanos/1000 + " us";
+        }
+    }
+
+    final class Counters implements TunnelMetrics {
+
+        /* Attributes */
+        private final LongAdder messagesSent = new LongAdder(), messagesReceived = new LongAdder();
+        private final LongAdder bytesSent = new LongAdder(), bytesReceived = new LongAdder();
+        private final LongAdder wireBytesSent = new LongAdder(), wireBytesReceived = new LongAdder();
+        private final LongAdder chestsSent = new LongAdder(), chestsReceived = new LongAdder();
+        private final LongAdder hashNanos = new LongAdder(), keygenNanos = new LongAdder();
+        private final LongAdder xorNanos = new LongAdder(), ioNanos = new LongAdder();
+        private final LongAdder failures = new LongAdder(), integrityFailures = new LongAdder();
+
+
+        /* Constructors */
+        private Counters() {}
+
+
+        /* Getters */
+        public long getMessagesSent() {
+            return messagesSent.sum();
+        }
+
+        public long getMessagesReceived() {
+            return messagesReceived.sum();
+        }
+
+        public long getBytesSent() {
+            return bytesSent.sum();
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.sum();
+        }
+
+        public long getWireBytesSent() {
+            return wireBytesSent.sum();
+        }
+
+        public long getWireBytesReceived() {
+            return wireBytesReceived.sum();
+        }
+
+        public long getChestsSent() {
+            return chestsSent.sum();
+        }
+
+        public long getChestsReceived() {
+            return chestsReceived.sum();
+        }
+
+        public long getHashNanos() {
+            return hashNanos.sum();
+        }
+
+        public long getKeygenNanos() {
+            return keygenNanos.sum();
+        }
+
+        public long getXorNanos() {
+            return xorNanos.sum();
+        }
+
+        public long getIoNanos() {
+            return ioNanos.sum();
+        }
+
+        public long getFailures() { // integrity failures included
+            return failures.sum();
+        }
+
+        public long getIntegrityFailures() {
+            return integrityFailures.sum();
+        }
+
+
+        /* Methods */
+        @Override
+        public void onMessage(Sample sample) {
+            if (sample.push) {
+                if (sample.ok) messagesSent.increment();
+                bytesSent.add(sample.ok ? sample.bytes : 0);
+                wireBytesSent.add(sample.wireBytes);
+                chestsSent.add(sample.chests);
+            }
+            else {
+                if (sample.ok) messagesReceived.increment();
+                bytesReceived.add(sample.ok ? sample.bytes : 0);
+                wireBytesReceived.add(sample.wireBytes);
+                chestsReceived.add(sample.chests);
+            }
+
+            hashNanos.add(sample.hashNanos);
+            keygenNanos.add(sample.keygenNanos);
+            xorNanos.add(sample.xorNanos);
+            ioNanos.add(sample.ioNanos);
+            if (!sample.ok) failures.increment();
+            if (sample.corruptedChest != -1) integrityFailures.increment();
+        }
+
+        @Override
+        public String toString() {
+            return "sent " + getMessagesSent() + " messages, " + getBytesSent() + " bytes, " + getChestsSent() + " chests; "
+                    + "received " + getMessagesReceived() + " messages, " + getBytesReceived() + " bytes, " + getChestsReceived() + " chests; "
+                    + "hash " + getHashNanos()/1_000_000 + " ms, keygen " + getKeygenNanos()/1_000_000 + " ms, xor " + getXorNanos()/1_000_000
+                    + " ms, io " + getIoNanos()/1_000_000 + " ms; " + getFailures() + " failures, " + getIntegrityFailures() + " integrity failures";
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.yudakan.sttp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelMux Class
+ *
+ * Several logical streams over one tunnel. Messages are cut into frames
+ * of a few chests, each one a tunnel message tagged with its stream id,
+ * and streams with something to send take turns one frame each, so a
+ * big transfer never holds a small message back for more than a frame.
+ * Frames follow the chests of the push key, resized or not.
+ * Each stream keeps up to queue received messages, a stream nobody
+ * receives from holds the others back once its queue is full. Once the
+ * tunnel breaks, every stream, even the ones opened later, fails to send
+ * and receives null.
+ * A writer & a reader thread push & pull the tunnel at the same time, a
+ * tunnel in parallel mode takes it as push & pull keep their own batches.
+ * Frame: [ id (2 bytes) | flags (1 byte) | fragment ]
+ *
+ * @author yka
+ * @version 1.0
+ */
+public final class TunnelMux implements Closeable {
+
+    /* Attributes */
+    public static final int MAX_STREAMS = 1 << 16;
+    private static final int FRAME_HEADER_LEN = 3;
+    private static final int DEFAULT_FRAME_SIZE = 16 * 1024;
+    public static final int DEFAULT_QUEUE = 256; // received messages per stream
+    private static final byte LAST = 1, CLOSE = 2, HELLO = 4;
+    private static final byte[] EOF = new byte[0];
+
+    private final Tunnel tunnel;
+    private final boolean initiator;
+    private final int frameChests, queue;
+    private volatile byte[] frame;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final BlockingQueue<Stream> ready = new LinkedBlockingQueue<>(); // round robin of streams with data
+    private final Stream closing;
+    private Thread writer, reader;
+    private volatile boolean closed, broken, ended; // broken: tunnel failed, ended: nothing more to receive
+
+
+    /* Constructors */
+    private TunnelMux(Builder builder) {
+        this.tunnel = builder.tunnel;
+        this.initiator = builder.initiator;
+        this.frameChests = builder.frameChests;
+        this.queue = builder.queue;
+        this.closing = new Stream(-1);
+    }
+
+    public static class Builder {
+
+        /* Attributes */
+        private Tunnel tunnel;
+        private boolean initiator;
+        private int frameChests, queue;
+
+
+        /* Constructors */
+        public Builder() {
+            queue = DEFAULT_QUEUE;
+        }
+
+
+        /* Methods */
+        public Builder setTunnel(Tunnel tunnel) {
+            this.tunnel = tunnel;
+            return this;
+        }
+
+        public Builder setInitiator(boolean initiator) { // Exactly one side, it takes the first push
+            this.initiator = initiator;
+            return this;
+        }
+
+        public Builder setFrameChests(int frameChests) throws IllegalArgumentException {
+            if (frameChests < 1)
+                throw new IllegalArgumentException("Chests per frame must be a natural number.");
+
+            this.frameChests = frameChests;
+            return this;
+        }
+
+        public Builder setQueue(int messages) throws IllegalArgumentException { // Received, not yet taken, per stream
+            if (messages < 1)
+                throw new IllegalArgumentException("Queue must be a natural number.");
+
+            this.queue = messages;
+            return this;
+        }
+
+        public TunnelMux build() throws IllegalStateException {
+            if (tunnel == null)
+                throw new IllegalStateException("Tunnel not specified.");
+
+            return new TunnelMux(this);
+        }
+    }
+
+
+    /* Getters */
+    public int getFrameSize() { // After start
+        return frame.length;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isBroken() {
+        return broken;
+    }
+
+
+    /* Methods */
+    // Fixes push & pull roles of the tunnel before both directions run at once
+    public void start() throws IOException {
+        if (initiator) {
+            if (!tunnel.push(new byte[]{ 0, 0, HELLO }, 0, FRAME_HEADER_LEN))
+                throw new IOException("Unable to send hello frame.");
+        }
+        else {
+            byte[] hello = tunnel.pull();
+            if (hello == null || hello.length != FRAME_HEADER_LEN || hello[2] != HELLO)
+                throw new IOException("Wrong hello frame.");
+        }
+
+        resizeFrame();
+        writer = new Thread(this::write, "sttp-mux-writer");
+        reader = new Thread(this::read, "sttp-mux-reader");
+        writer.setDaemon(true);
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+    }
+
+    public Stream open(int id) throws IllegalArgumentException {
+        if (id < 0 || id >= MAX_STREAMS)
+            throw new IllegalArgumentException("Stream id out of bounds.");
+
+        final Stream stream = streams.computeIfAbsent(id, Stream::new);
+        if (ended) stream.end(); // reader gone before it was opened
+        return stream;
+    }
+
+    // Sends what is queued, then tells the peer. Streams keep receiving until the peer closes too. Safe before start
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+
+        if (writer == null) return; // never started, nothing to send
+        ready.add(closing);
+        try {
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                Stream stream = ready.take();
+
+                if (stream == closing) {
+                    if (!ready.isEmpty()) { // still data queued
+                        ready.add(closing);
+                        continue;
+                    }
+
+                    frame[2] = CLOSE;
+                    tunnel.push(frame, 0, FRAME_HEADER_LEN);
+                    return;
+                }
+
+                resizeFrame();
+                if (!stream.sendFrame()) {
+                    broken = true;
+                    tunnel.error("Unable to send frame of stream " + stream.id + '.', null);
+                    return;
+                }
+                stream.reschedule();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void read() {
+        byte[] msg;
+        boolean peerClosed = false;
+
+        try {
+            while ((msg = tunnel.pull()) != null && msg.length >= FRAME_HEADER_LEN) {
+                int id = (msg[0] & 0xff) << 8 | (msg[1] & 0xff);
+                byte flags = msg[2];
+
+                if ((flags & CLOSE) != 0) {
+                    peerClosed = true;
+                    break;
+                }
+                open(id).receiveFrame(msg, flags);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Peer closed or broken tunnel, streams opened from now on end at once
+        if (!peerClosed) broken = true;
+        ended = true;
+        for (Stream stream : streams.values()) stream.end();
+    }
+
+    // Frames of whole chests of the key the next push uses
+    private void resizeFrame() {
+        final int msgfLen = tunnel.getPushMsgfLen();
+        final int chests = frameChests > 0 ? frameChests : Math.max(1, DEFAULT_FRAME_SIZE / msgfLen);
+        if (frame == null || frame.length != chests * msgfLen) frame = new byte[chests * msgfLen];
+    }
+
+    public final class Stream {
+
+        /* Attributes */
+        private final int id;
+        private final Queue<byte[]> outbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>(queue);
+        private volatile boolean eof;
+        private ByteArrayOutputStream partial;
+        private byte[] current; // message being framed, writer only
+        private int currentPos;
+
+
+        /* Constructors */
+        private Stream(int id) {
+            this.id = id;
+        }
+
+
+        /* Getters */
+        public int getId() {
+            return id;
+        }
+
+
+        /* Methods */
+        public boolean send(byte[] msg) { // False once the mux is closed or the tunnel broke
+            if (closed || broken) return false;
+
+            outbox.add(msg);
+            if (scheduled.compareAndSet(false, true)) ready.add(this);
+            return true;
+        }
+
+        // Next whole message of this stream, null once the peer closed
+        public byte[] receive() throws InterruptedException {
+            byte[] msg = eof ? received.poll() : received.take();
+            if (msg == null || msg == EOF) {
+                received.offer(EOF);
+                return null;
+            }
+
+            return msg;
+        }
+
+        private void end() { // A full queue wakes nobody up, receive sees eof once it drained it
+            eof = true;
+            received.offer(EOF);
+        }
+
+        private boolean sendFrame() {
+            if (current == null) {
+                current = outbox.poll();
+                currentPos = 0;
+            }
+
+            final int n = Math.min(frame.length-FRAME_HEADER_LEN, current.length-currentPos);
+            final boolean last = currentPos+n == current.length;
+
+            frame[0] = (byte)(id >>> 8);
+            frame[1] = (byte)id;
+            frame[2] = last ? LAST : 0;
+            System.arraycopy(current, currentPos, frame, FRAME_HEADER_LEN, n);
+            currentPos += n;
+
+            if (last) current = null;
+            return tunnel.push(frame, 0, FRAME_HEADER_LEN+n);
+        }
+
+        // Back to the end of the line while there is something left
+        private void reschedule() {
+            if (current != null || !outbox.isEmpty()) {
+                ready.add(this);
+                return;
+            }
+
+            scheduled.set(false);
+            if (!outbox.isEmpty() && scheduled.compareAndSet(false, true)) ready.add(this);
+        }
+
+        private void receiveFrame(byte[] msg, byte flags) throws InterruptedException {
+            final boolean last = (flags & LAST) != 0;
+
+            // Single frame message, no copy through partial
+            if (last && partial == null) {
+                received.put(Arrays.copyOfRange(msg, FRAME_HEADER_LEN, msg.length));
+                return;
+            }
+
+            if (partial == null) partial = new ByteArrayOutputStream();
+            partial.write(msg, FRAME_HEADER_LEN, msg.length-FRAME_HEADER_LEN);
+
+            if (last) {
+                received.put(partial.toByteArray());
+                partial = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.yudakan.sttp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelOutputStream Class
+ *
+ * Encrypts bytes chest by chest as they are written. Data is sent as a
+ * sequence of messages of at most {@code chests} chests each, and closing
+ * the stream sends an empty message as end marker. Memory stays bounded by
+ * that buffer no matter how long the stream is.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public class TunnelOutputStream extends OutputStream {
+
+    /* Attributes */
+    public static final int DEFAULT_CHESTS = 8;
+    private final Tunnel tunnel;
+    private final byte[] buf;
+    private int count;
+    private boolean closed;
+
+
+    /* Constructors */
+    public TunnelOutputStream(Tunnel tunnel) {
+        this(tunnel, DEFAULT_CHESTS);
+    }
+
+    public TunnelOutputStream(Tunnel tunnel, int chests) throws IllegalArgumentException {
+        if (chests < 1)
+            throw new IllegalArgumentException("Chests per message must be a natural number.");
+
+        this.tunnel = tunnel;
+        this.buf = new byte[tunnel.getPushMsgfLen() * chests];
+    }
+
+
+    /* Methods */
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == buf.length) send();
+        buf[count++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || off+len > b.length)
+            throw new IndexOutOfBoundsException();
+
+        while (len > 0) {
+            if (count == buf.length) send();
+
+            int n = Math.min(len, buf.length-count);
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (count > 0) send();
+        if (!tunnel.flush())
+            throw new IOException("Unable to flush tunnel.");
+    }
+
+    @Override
+    public void close() throws IOException { // Sends end marker, tunnel stays open
+        if (closed) return;
+
+        flush();
+        if (!tunnel.push(buf, 0, 0))
+            throw new IOException("Unable to send end of stream.");
+        closed = true;
+    }
+
+    private void send() throws IOException {
+        if (!tunnel.push(buf, 0, count))
+            throw new IOException("Unable to send data through tunnel.");
+        count = 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed.");
+    }
+}
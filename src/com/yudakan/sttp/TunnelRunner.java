@@ -0,0 +1,237 @@
+package com.yudakan.sttp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelRunner Class
+ *
+ * Runs blocking tunnels one thread each, a virtual thread when the JVM
+ * has them (Java 21+) or a platform one otherwise. Handlers keep the
+ * plain push/pull style of {@link Tunnel}, the runner opens the socket,
+ * builds the tunnel with the keys of its peer and releases them at the
+ * end.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public final class TunnelRunner implements Closeable {
+
+    /* Attributes */
+    private final TunnelServer.KeyProvider keys;
+    private final PrintStream log;
+    private final FlushPolicy flushPolicy;
+    private final RandomSource random;
+    private final boolean virtual;
+    private final ExecutorService executor;
+    private final AtomicInteger active = new AtomicInteger();
+
+
+    /* Constructors */
+    private TunnelRunner(Builder builder) {
+        this.keys = builder.keys;
+        this.log = builder.log;
+        this.flushPolicy = builder.flushPolicy;
+        this.random = builder.random;
+
+        ThreadFactory factory = threadFactory("sttp-tunnel-", builder.virtual);
+        this.virtual = builder.virtual && factory != null;
+        this.executor = this.virtual ? perTaskExecutor(factory) : Executors.newCachedThreadPool(threadFactory("sttp-tunnel-", false));
+    }
+
+    public static class Builder {
+
+        /* Attributes */
+        private TunnelServer.KeyProvider keys;
+        private PrintStream log;
+        private FlushPolicy flushPolicy;
+        private RandomSource random;
+        private boolean virtual;
+
+
+        /* Constructors */
+        public Builder() {
+            virtual = true;
+        }
+
+
+        /* Methods */
+        public Builder setKeys(TunnelServer.KeyProvider keys) {
+            this.keys = keys;
+            return this;
+        }
+
+        public Builder setLog(OutputStream log) {
+            this.log = new PrintStream(log, true);
+            return this;
+        }
+
+        public Builder setFlushPolicy(FlushPolicy flushPolicy) {
+            this.flushPolicy = flushPolicy;
+            return this;
+        }
+
+        public Builder setRandom(RandomSource random) { // Source of new keys
+            this.random = random;
+            return this;
+        }
+
+        public Builder setVirtual(boolean virtual) { // Virtual threads when available, platform ones otherwise
+            this.virtual = virtual;
+            return this;
+        }
+
+        public TunnelRunner build() throws IllegalStateException {
+            if (keys == null)
+                throw new IllegalStateException("Key provider not specified.");
+            if (log == null)          log = new PrintStream(System.err, true);
+            if (flushPolicy == null)  flushPolicy = FlushPolicy.perMessage();
+            if (random == null)       random = RandomSource.threadLocal();
+
+            return new TunnelRunner(this);
+        }
+    }
+
+    public interface Handler {
+        void handle(Tunnel sttp) throws Exception;
+    }
+
+
+    /* Getters */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+
+
+    /* Methods */
+    // Accepts until serverSocket closes, one tunnel per connection
+    public void serve(ServerSocket serverSocket, Handler handler) throws IOException {
+        while (true) {
+            final Socket socket;
+            try { socket = serverSocket.accept(); }
+            catch (SocketException e) {
+                if (serverSocket.isClosed()) break;
+                throw e;
+            }
+
+            executor.execute(() -> run(socket, handler));
+        }
+    }
+
+    public Future<?> connect(String host, int port, Handler handler) {
+        return executor.submit(() -> {
+            run(new Socket(host, port), handler);
+            return null;
+        });
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run(Socket socket, Handler handler) {
+        SocketAddress peer = socket.getRemoteSocketAddress();
+        Key[] pair = null;
+        active.incrementAndGet();
+
+        try (socket) {
+            pair = keys.acquire(peer);
+
+            Tunnel sttp = new Tunnel.Builder()
+                    .setIn(socket.getInputStream())
+                    .setOut(socket.getOutputStream())
+                    .setLog(log)
+                    .setApurochiKey(pair[0])
+                    .setKyoriKey(pair[1])
+                    .setFlushPolicy(flushPolicy)
+                    .setRandom(random)
+                    .setSaveKeys(false) // keys go back to their provider, never to the default path
+                    .build();
+            handler.handle(sttp);
+            sttp.flush();
+        }
+        catch (Exception e) {
+            error("Tunnel with " + peer + " failed.", e);
+        }
+        finally {
+            active.decrementAndGet();
+        }
+
+        try {
+            if (pair != null) keys.release(peer, pair[0], pair[1]);
+        }
+        catch (IOException e) {
+            error("IOException when trying to release keys of " + peer + '.', e);
+        }
+    }
+
+    private void error(String issue, Exception e) {
+        log.println("------------------------------------------------------------");
+        log.println(issue);
+        log.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+        if (e != null) e.printStackTrace(log);
+    }
+
+    // Thread.ofVirtual() through reflection so the tree still builds on 17, null when not available
+    static ThreadFactory threadFactory(String prefix, boolean virtual) {
+        if (virtual) {
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                Object ofVirtual = Thread.class.getMethod("ofVirtual").invoke(null);
+                ofVirtual = builder.getMethod("name", String.class, long.class).invoke(ofVirtual, prefix, 0L);
+                return (ThreadFactory)builder.getMethod("factory").invoke(ofVirtual);
+            }
+            catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread th = new Thread(r, prefix + count.getAndIncrement());
+            th.setDaemon(true);
+            return th;
+        };
+    }
+
+    static Thread newThread(Runnable r, String name) { // Virtual when available
+        ThreadFactory factory = threadFactory(name, true);
+        if (factory == null) factory = threadFactory(name, false);
+
+        return factory.newThread(r);
+    }
+
+    private static ExecutorService perTaskExecutor(ThreadFactory factory) {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(factory);
+        }
+    }
+}
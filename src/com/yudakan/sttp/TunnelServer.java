@@ -0,0 +1,640 @@
+package com.yudakan.sttp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelServer Class
+ *
+ * Non-blocking server driving many tunnels from a few event loops. Chests
+ * are parsed incrementally as bytes arrive and sealed lazily as the socket
+ * accepts them, so an idle session holds no I/O buffers, only its keys:
+ * about 2.5 KB of heap each with 512 byte chests, the same with 2000 and
+ * 8000 idle sessions (client channels of the same JVM included).
+ * The server always speaks with the first key given by its KeyProvider
+ * and listens with the second one, peers use a {@link Tunnel} or
+ * {@link ChannelTunnel} with the same keys from the other side. Plain
+ * headers only: a Tunnel peer must not use a codec, batches, trimmed
+ * tails, chest sizing nor messages over 2 GB.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public final class TunnelServer implements Closeable {
+
+    /* Attributes */
+    public static final int DEFAULT_PORT = 4097;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    private static final int HEADER_LEN = 4;
+
+    private final InetSocketAddress address;
+    private final KeyProvider keys;
+    private final Listener listener;
+    private final PrintStream log;
+    private final RandomSource random;
+    private final int maxConnections, maxMessageSize;
+    private final long maxPendingBytes;
+    private final EventLoop[] loops;
+
+    private ServerSocketChannel serverChannel;
+    private SelectionKey acceptKey;
+    private final AtomicInteger connections = new AtomicInteger();
+    private int nextLoop;
+
+
+    /* Constructors */
+    private TunnelServer(Builder builder) {
+        this.address = builder.address;
+        this.keys = builder.keys;
+        this.listener = builder.listener;
+        this.log = builder.log;
+        this.random = builder.random;
+        this.maxConnections = builder.maxConnections;
+        this.maxMessageSize = builder.maxMessageSize;
+        this.maxPendingBytes = builder.maxPendingBytes;
+        this.loops = new EventLoop[builder.eventLoops];
+    }
+
+    public static class Builder {
+
+        /* Attributes */
+        private InetSocketAddress address;
+        private KeyProvider keys;
+        private Listener listener;
+        private PrintStream log;
+        private RandomSource random;
+        private int eventLoops;
+        private int maxConnections, maxMessageSize;
+        private long maxPendingBytes;
+
+
+        /* Constructors */
+        public Builder() {
+            address = new InetSocketAddress(DEFAULT_PORT);
+            eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors());
+            maxConnections = Integer.MAX_VALUE;
+            maxMessageSize = 64 * 1024 * 1024;
+            maxPendingBytes = 16 * 1024 * 1024;
+        }
+
+
+        /* Methods */
+        public Builder setAddress(InetSocketAddress address) {
+            this.address = address;
+            return this;
+        }
+
+        public Builder setPort(int port) {
+            this.address = new InetSocketAddress(port);
+            return this;
+        }
+
+        public Builder setKeys(KeyProvider keys) {
+            this.keys = keys;
+            return this;
+        }
+
+        public Builder setListener(Listener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        public Builder setLog(OutputStream log) {
+            this.log = new PrintStream(log, true);
+            return this;
+        }
+
+        public Builder setRandom(RandomSource random) { // Source of new keys
+            this.random = random;
+            return this;
+        }
+
+        public Builder setEventLoops(int eventLoops) throws IllegalArgumentException {
+            if (eventLoops < 1)
+                throw new IllegalArgumentException("Event loops must be a natural number.");
+
+            this.eventLoops = eventLoops;
+            return this;
+        }
+
+        public Builder setMaxConnections(int maxConnections) throws IllegalArgumentException { // Accept backpressure
+            if (maxConnections < 1)
+                throw new IllegalArgumentException("Max connections must be a natural number.");
+
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        public Builder setMaxMessageSize(int maxMessageSize) throws IllegalArgumentException {
+            if (maxMessageSize < 0)
+                throw new IllegalArgumentException("Max message size can't be negative.");
+
+            this.maxMessageSize = maxMessageSize;
+            return this;
+        }
+
+        public Builder setMaxPendingBytes(long maxPendingBytes) throws IllegalArgumentException { // Write backpressure, per session
+            if (maxPendingBytes < 1)
+                throw new IllegalArgumentException("Max pending bytes must be a natural number.");
+
+            this.maxPendingBytes = maxPendingBytes;
+            return this;
+        }
+
+        public TunnelServer build() throws IllegalStateException {
+            if (keys == null)
+                throw new IllegalStateException("Key provider not specified.");
+            if (listener == null)
+                throw new IllegalStateException("Listener not specified.");
+            if (log == null)    log = new PrintStream(System.err, true);
+            if (random == null) random = RandomSource.cached();
+
+            return new TunnelServer(this);
+        }
+    }
+
+    public interface KeyProvider {
+
+        // {apurochiKey, kyoriKey} of the peer: server pushes with the first one & pulls with the second
+        Key[] acquire(SocketAddress peer) throws IOException;
+
+        // Session closed, keys are at their last state
+        default void release(SocketAddress peer, Key apurochiKey, Key kyoriKey) throws IOException {}
+    }
+
+    public interface Listener {
+
+        default void onOpen(Session session) {}
+
+        // Runs on the event loop, must not block
+        void onMessage(Session session, byte[] msg);
+
+        // Pending bytes drained after a rejected send
+        default void onWritable(Session session) {}
+
+        default void onClose(Session session, Exception cause) {}
+    }
+
+
+    /* Getters */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+
+    /* Methods */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(address);
+
+        for (int i=0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].thread.start();
+        }
+
+        loops[0].execute(() -> {
+            try { acceptKey = serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT); }
+            catch (ClosedChannelException e) { error("Server channel closed before start.", e); }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+
+        for (EventLoop loop : loops) {
+            if (loop == null) continue;
+
+            loop.execute(loop::shutdown);
+            try { loop.thread.join(); }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+
+        try {
+            while (connections.get() < maxConnections && (channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                connections.incrementAndGet();
+
+                final SocketChannel accepted = channel;
+                final EventLoop loop = loops[Math.floorMod(nextLoop++, loops.length)];
+                loop.execute(() -> loop.open(accepted));
+            }
+
+            // Accept backpressure, resumed when a session closes
+            if (connections.get() >= maxConnections) acceptKey.interestOps(0);
+        }
+        catch (IOException e) {
+            if (serverChannel.isOpen()) error("IOException when trying to accept a connection.", e);
+        }
+    }
+
+    private void closed() {
+        if (connections.decrementAndGet() < maxConnections && acceptKey != null)
+            loops[0].execute(() -> {
+                if (acceptKey.isValid()) acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+            });
+    }
+
+    private void error(String issue, Exception e) {
+        log.println("------------------------------------------------------------");
+        log.println(issue);
+        log.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+        if (e != null) e.printStackTrace(log);
+    }
+
+    private final class EventLoop implements Runnable {
+
+        /* Attributes */
+        private final Thread thread;
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(IO_BUFFER_SIZE); // shared by sessions of this loop
+        private final List<Session> sessions = new ArrayList<>();
+        private volatile boolean running = true;
+
+
+        /* Constructors */
+        EventLoop(int id) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "sttp-server-" + id);
+        }
+
+
+        /* Methods */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    // Tasks queued by the loop itself run before it blocks again
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+                    if (!running) break;
+
+                    selector.select();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) { accept(); continue; }
+
+                        Session session = (Session)key.attachment();
+                        if (key.isReadable()) session.onReadable(readBuffer);
+                        if (key.isValid() && key.isWritable()) session.onWritable();
+                    }
+                }
+                catch (IOException e) {
+                    error("IOException in event loop.", e);
+                }
+            }
+
+            try { selector.close(); }
+            catch (IOException e) { error("IOException when trying to close selector.", e); }
+        }
+
+        void open(SocketChannel channel) {
+            Session session = null;
+
+            try {
+                SocketAddress peer = channel.getRemoteAddress();
+                Key[] pair = keys.acquire(peer);
+
+                session = new Session(this, channel, peer, pair[0], pair[1]);
+                session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                sessions.add(session);
+                listener.onOpen(session);
+            }
+            catch (IOException | RuntimeException e) {
+                if (session != null) session.close(e);
+                else {
+                    error("Unable to open session.", e);
+                    try { channel.close(); }
+                    catch (IOException ignored) {}
+                    closed();
+                }
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            for (Session session : new ArrayList<>(sessions)) session.close(null);
+        }
+    }
+
+    public final class Session {
+
+        /* Attributes */
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SocketAddress peer;
+        private final Key apurochiKey, kyoriKey;
+        private SelectionKey key;
+        private volatile Object attachment;
+        private boolean closed;
+
+        // Pull side, partial holds a header or chest split between reads
+        private int msgLen = -1, msgPos;
+        private byte[] msg;
+        private byte[] partial;
+        private int partialLen;
+
+        // Push side, writeBuffer only lives while there is something to send
+        private final Queue<byte[]> outbox = new ConcurrentLinkedQueue<>();
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private volatile boolean rejected;
+        private byte[] current;
+        private int currentPos;
+        private ByteBuffer writeBuffer;
+        private byte[] newKey;
+
+
+        /* Constructors */
+        private Session(EventLoop loop, SocketChannel channel, SocketAddress peer, Key apurochiKey, Key kyoriKey) {
+            this.loop = loop;
+            this.channel = channel;
+            this.peer = peer;
+            this.apurochiKey = apurochiKey;
+            this.kyoriKey = kyoriKey;
+        }
+
+
+        /* Getters & Setters */
+        public SocketAddress getPeer() {
+            return peer;
+        }
+
+        public long getPendingBytes() {
+            return pendingBytes.get();
+        }
+
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        public void setReadable(boolean readable) { // Read backpressure
+            loop.execute(() -> {
+                if (key.isValid())
+                    key.interestOps(readable ? key.interestOps() | SelectionKey.OP_READ : key.interestOps() & ~SelectionKey.OP_READ);
+            });
+        }
+
+
+        /* Methods */
+        // Queues msg, false when pending bytes would exceed the limit, then onWritable tells when to retry
+        public boolean send(byte[] msg) {
+            if (pendingBytes.addAndGet(msg.length) > maxPendingBytes && pendingBytes.get() != msg.length) {
+                pendingBytes.addAndGet(-msg.length);
+                rejected = true;
+                return false;
+            }
+
+            outbox.add(msg);
+            loop.execute(() -> {
+                if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            });
+
+            return true;
+        }
+
+        public void close() {
+            loop.execute(() -> close(null));
+        }
+
+        private void onReadable(ByteBuffer buf) {
+            try {
+                buf.clear();
+                if (channel.read(buf) == -1) {
+                    close(null);
+                    return;
+                }
+                buf.flip();
+
+                final byte[] arr = buf.array();
+                int pos = 0;
+                final int end = buf.limit();
+
+                while (pos < end && !closed) {
+                    final int unit = msgLen < 0 ? HEADER_LEN : kyoriKey.getChestSize();
+
+                    if (partialLen > 0 || end-pos < unit) { // Gather split unit
+                        if (partial == null || partial.length < unit) partial = new byte[Math.max(unit, HEADER_LEN)];
+
+                        final int n = Math.min(unit-partialLen, end-pos);
+                        System.arraycopy(arr, pos, partial, partialLen, n);
+                        partialLen += n;
+                        pos += n;
+
+                        if (partialLen < unit) break;
+                        partialLen = 0;
+                        unit(partial, 0);
+                    }
+                    else { // Whole unit in read buffer, no copy
+                        unit(arr, pos);
+                        pos += unit;
+                    }
+                }
+
+                // Flat memory when nothing is split
+                if (partialLen == 0) partial = null;
+            }
+            catch (IOException | RuntimeException e) {
+                close(e);
+            }
+        }
+
+        private void unit(byte[] buf, int off) throws IOException {
+
+            // Header --> msgLen
+            if (msgLen < 0) {
+                msgLen = (buf[off] & 0xff) << 24 | (buf[off+1] & 0xff) << 16 | (buf[off+2] & 0xff) << 8 | (buf[off+3] & 0xff);
+                if (msgLen < 0 || msgLen > maxMessageSize)
+                    throw new IOException("Tagged header, message too big or wrong header: " + msgLen);
+
+                msg = new byte[msgLen];
+                msgPos = 0;
+            }
+
+            // Chest
+            else {
+                final int hashLen = kyoriKey.getHashLength();
+                final int msgfLen = kyoriKey.getMsgfLen();
+                final int keyLen = kyoriKey.getLength();
+                final byte[] key = kyoriKey.getKey_ByRef();
+
+                // Decrypt
+                Xor.xor(key, 0, buf, off, keyLen);
+                Xor.xor(key, 0, buf, off+keyLen, keyLen);
+
+                // Check integrity
+                if (!Hash.local(kyoriKey.getAlgorithm()).verify(buf, off+hashLen, msgfLen, buf, off))
+                    throw new IOException("Hash error: Corrupted Integrity or Wrong Key.");
+
+                // Update key
+                System.arraycopy(buf, off+keyLen, key, 0, keyLen);
+
+                // Building msg...
+                final int n = Math.min(msgfLen, msgLen-msgPos);
+                System.arraycopy(buf, off+hashLen, msg, msgPos, n);
+                msgPos += n;
+            }
+
+            // Message completed
+            if (msgPos == msgLen) {
+                byte[] done = msg;
+                msgLen = -1;
+                msg = null;
+                listener.onMessage(this, done);
+            }
+        }
+
+        private void onWritable() {
+            try {
+                while (true) {
+                    if (writeBuffer != null && writeBuffer.hasRemaining()) {
+                        channel.write(writeBuffer);
+                        if (writeBuffer.hasRemaining()) return; // socket full, keep OP_WRITE
+                    }
+                    if (!seal()) break;
+                }
+
+                // Drained, flat memory again
+                writeBuffer = null;
+                newKey = null;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+                if (rejected && pendingBytes.get() == 0) {
+                    rejected = false;
+                    listener.onWritable(this);
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                close(e);
+            }
+        }
+
+        // Seals queued messages into write buffer, false when nothing is left
+        private boolean seal() {
+            final int hashLen = apurochiKey.getHashLength();
+            final int msgfLen = apurochiKey.getMsgfLen();
+            final int keyLen = apurochiKey.getLength();
+            final int chestSize = apurochiKey.getChestSize();
+            final byte[] key = apurochiKey.getKey_ByRef();
+            final Hash hash = Hash.local(apurochiKey.getAlgorithm());
+
+            if (writeBuffer == null) {
+                writeBuffer = ByteBuffer.allocate(Math.max(IO_BUFFER_SIZE, chestSize+HEADER_LEN));
+                newKey = new byte[keyLen];
+            }
+            writeBuffer.clear();
+
+            final byte[] buf = writeBuffer.array();
+            int pos = 0;
+
+            while (buf.length-pos >= chestSize+HEADER_LEN) {
+
+                // Next message, header --> msgLen
+                if (current == null) {
+                    if ((current = outbox.poll()) == null) break;
+
+                    currentPos = 0;
+                    buf[pos++] = (byte)(current.length >>> 24);
+                    buf[pos++] = (byte)(current.length >>> 16);
+                    buf[pos++] = (byte)(current.length >>> 8);
+                    buf[pos++] = (byte)current.length;
+                }
+
+                // Chest
+                if (currentPos < current.length) {
+                    final int n = Math.min(msgfLen, current.length-currentPos);
+
+                    System.arraycopy(current, currentPos, buf, pos+hashLen, n);
+                    hash.digest(buf, pos+hashLen, msgfLen, buf, pos);
+                    random.nextBytes(newKey);
+                    System.arraycopy(newKey, 0, buf, pos+keyLen, keyLen);
+
+                    Xor.xor(key, 0, buf, pos, keyLen);
+                    Xor.xor(key, 0, buf, pos+keyLen, keyLen);
+                    System.arraycopy(newKey, 0, key, 0, keyLen);
+
+                    currentPos += n;
+                    pos += chestSize;
+                }
+
+                if (currentPos == current.length) {
+                    pendingBytes.addAndGet(-current.length);
+                    current = null;
+                }
+            }
+
+            writeBuffer.limit(pos);
+            return pos > 0;
+        }
+
+        private void close(Exception cause) {
+            if (closed) return;
+            closed = true;
+
+            if (cause != null) error("Session with " + peer + " closed.", cause);
+
+            try {
+                if (key != null) key.cancel();
+                channel.close();
+            }
+            catch (IOException e) {
+                error("IOException when trying to close session.", e);
+            }
+
+            try {
+                keys.release(peer, apurochiKey, kyoriKey);
+            }
+            catch (IOException e) {
+                error("IOException when trying to release keys of " + peer + '.', e);
+            }
+
+            loop.sessions.remove(this);
+            closed();
+            listener.onClose(this, cause);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.yudakan.sttp;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * Xor Class
+ *
+ * XOR kernel working 8 bytes at a time through a long view of the arrays.
+ * Offsets let it run directly on slices of larger I/O buffers.
+ *
+ * @author yka
+ * @version 1.0
+ */
+public final class Xor {
+
+    /* Attributes */
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle KEY_LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle BUF_LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+
+    /* Constructors */
+    private Xor() {}
+
+
+    /* Methods */
+    // dst[off..off+len) ^= key[keyOff..keyOff+len)
+    public static void xor(byte[] key, int keyOff, byte[] dst, int off, int len) {
+        if (keyOff < 0 || off < 0 || len < 0 || keyOff+len > key.length || off+len > dst.length)
+            throw new IndexOutOfBoundsException();
+
+        int i = 0;
+
+        for (final int words = len & ~7; i < words; i += 8)
+            LONGS.set(dst, off+i, (long)LONGS.get(dst, off+i) ^ (long)LONGS.get(key, keyOff+i));
+
+        for (; i < len; i++)
+            dst[off+i] ^= key[keyOff+i];
+    }
+
+    // Same on a heap or direct buffer, by absolute index, position & limit untouched
+    public static void xor(byte[] key, int keyOff, ByteBuffer dst, int index, int len) {
+        if (keyOff < 0 || index < 0 || len < 0 || keyOff+len > key.length || index+len > dst.limit())
+            throw new IndexOutOfBoundsException();
+
+        int i = 0;
+
+        for (final int words = len & ~7; i < words; i += 8)
+            BUF_LONGS.set(dst, index+i, (long)BUF_LONGS.get(dst, index+i) ^ (long)KEY_LONGS.get(key, keyOff+i));
+
+        for (; i < len; i++)
+            dst.put(index+i, (byte)(dst.get(index+i) ^ key[keyOff+i]));
+    }
+}
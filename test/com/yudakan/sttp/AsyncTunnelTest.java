@@ -0,0 +1,155 @@
+package com.yudakan.sttp;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * AsyncTunnelTest Class
+ *
+ * AsyncTunnels piped to each other, many messages in flight both ways.
+ *
+ * @author yka
+ * @version 1.0
+ */
+// A hung close can't hold the build
+@Timeout(value = 60, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+class AsyncTunnelTest {
+
+    /* Attributes */
+    private static final int BMPC = 1000;
+    private final Random random = new Random(5);
+    private byte[] apurochi, kyori;
+
+    @TempDir
+    Path dir;
+
+
+    /* Methods */
+    @BeforeEach
+    void keys() {
+        apurochi = new Key.Keygen().setBmpc(BMPC).build().toBytes();
+        kyori = new Key.Keygen().setBmpc(BMPC).build().toBytes();
+    }
+
+    private Key key(byte[] bytes, String name) throws IOException { // Saved on errors & close, never in the working directory
+        new Key(bytes).saveAs(dir.resolve(name).toFile());
+        return new Key(dir.resolve(name).toFile());
+    }
+
+    private byte[] message(int len) {
+        byte[] msg = new byte[len];
+        random.nextBytes(msg);
+        return msg;
+    }
+
+    @Test
+    void bothWaysAtOnceInParallel() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        PipedOutputStream aOut = new PipedOutputStream(), bOut = new PipedOutputStream();
+        PipedInputStream aIn = new PipedInputStream(bOut, 1 << 20), bIn = new PipedInputStream(aOut, 1 << 20);
+
+        // Mirrored keys, both ends push first
+        AsyncTunnel[] ends = new AsyncTunnel[2];
+        for (int i=0; i < 2; i++)
+            ends[i] = new AsyncTunnel.Builder()
+                    .setIn(i == 0 ? aIn : bIn)
+                    .setOut(i == 0 ? aOut : bOut)
+                    .setLog(new ByteArrayOutputStream())
+                    .setApurochiKey(key(i == 0 ? apurochi : kyori, "apurochiKey" + i))
+                    .setKyoriKey(key(i == 0 ? kyori : apurochi, "kyoriKey" + i))
+                    .setParallel(pool)
+                    .setQueue(8)
+                    .build();
+
+        try {
+            List<List<byte[]>> msgs = new ArrayList<>();
+            List<CompletableFuture<?>> pushed = new ArrayList<>();
+            List<List<CompletableFuture<byte[]>>> pulled = new ArrayList<>();
+            for (int i=0; i < 2; i++) {
+                msgs.add(new ArrayList<>());
+                pulled.add(new ArrayList<>());
+            }
+
+            // Pushes of both ends before their pulls, the first call fixes the role
+            for (int j=0; j < 40; j++) {
+                for (int i=0; i < 2; i++) {
+                    byte[] msg = message(random.nextInt(600*BMPC));
+                    msgs.get(i).add(msg);
+                    pushed.add(ends[i].pushAsync(msg));
+                }
+                for (int i=0; i < 2; i++) pulled.get(i).add(ends[i].pullAsync());
+            }
+
+            for (CompletableFuture<?> f : pushed) f.get();
+            for (int i=0; i < 2; i++)
+                for (int j=0; j < 40; j++) assertArrayEquals(msgs.get(i).get(j), pulled.get(1-i).get(j).get());
+        }
+        finally {
+            for (AsyncTunnel end : ends) end.close();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void failedWriteFailsEveryNextPush() throws Exception {
+        final int wire = 4 + new Key(apurochi).getChestSize(); // header & chest of a message
+        OutputStream out = new OutputStream() { // Takes 3 messages
+            private int left = 3 * wire;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{ (byte)b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if ((left -= len) < 0) throw new IOException("Peer gone.");
+            }
+        };
+        AsyncTunnel tunnel = new AsyncTunnel.Builder()
+                .setIn(new ByteArrayInputStream(new byte[0]))
+                .setOut(out)
+                .setLog(new ByteArrayOutputStream())
+                .setApurochiKey(key(apurochi, "apurochiKey"))
+                .setKyoriKey(key(kyori, "kyoriKey"))
+                .build();
+
+        List<CompletableFuture<Void>> pushed = new ArrayList<>();
+        for (int i=0; i < 10; i++) pushed.add(tunnel.pushAsync(message(BMPC)));
+
+        pushed.get(0).get();
+        ExecutionException e = assertThrows(ExecutionException.class, () -> pushed.get(3).get());
+        assertEquals("Peer gone.", e.getCause().getMessage());
+        for (CompletableFuture<Void> f : pushed.subList(4, 10))
+            assertEquals(e.getCause(), assertThrows(ExecutionException.class, f::get).getCause());
+
+        tunnel.close();
+        ExecutionException closed = assertThrows(ExecutionException.class, () -> tunnel.pushAsync(new byte[1]).get());
+        assertInstanceOf(IOException.class, closed.getCause());
+        assertEquals("Tunnel closed.", closed.getCause().getMessage());
+    }
+}
@@ -0,0 +1,225 @@
+package com.yudakan.sttp;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * ChannelTunnelTest Class
+ *
+ * A ChannelTunnel and a Tunnel talking through memory, one way and the
+ * other. Keys live in a temporary directory, errors save them there.
+ *
+ * @author yka
+ * @version 1.0
+ */
+class ChannelTunnelTest {
+
+    /* Attributes */
+    private static final int BMPC = 100;
+    private static final int[] LENGTHS = { 0, 1, BMPC-1, BMPC, BMPC+1, 5*BMPC+3, 1000*BMPC+7 };
+    private final Random random = new Random(2);
+    private byte[] apurochi, kyori;
+
+    @TempDir
+    Path dir;
+
+
+    /* Methods */
+    @BeforeEach
+    void keys() {
+        apurochi = new Key.Keygen().setBmpc(BMPC).build().toBytes();
+        kyori = new Key.Keygen().setBmpc(BMPC).build().toBytes();
+    }
+
+    private Key key(byte[] bytes, String name) throws IOException {
+        Key key = new Key(bytes);
+        key.saveAs(dir.resolve(name).toFile());
+        return new Key(new File(dir.toFile(), name));
+    }
+
+    private Tunnel tunnel(ByteArrayOutputStream out, byte[] in, boolean trimTail) throws IOException {
+        return new Tunnel.Builder()
+                .setIn(new ByteArrayInputStream(in))
+                .setOut(out)
+                .setLog(new ByteArrayOutputStream())
+                .setApurochiKey(new Key(apurochi))
+                .setKyoriKey(new Key(kyori))
+                .setSaveKeys(false)
+                .setTrimTail(trimTail)
+                .build();
+    }
+
+    private ChannelTunnel channelTunnel(ByteArrayOutputStream out, byte[] in) throws IOException {
+        return channelTunnel(out, in, new ByteArrayOutputStream());
+    }
+
+    private ChannelTunnel channelTunnel(ByteArrayOutputStream out, byte[] in, ByteArrayOutputStream log) throws IOException {
+        return new ChannelTunnel.Builder()
+                .setIn(Channels.newChannel(new ByteArrayInputStream(in)))
+                .setOut(Channels.newChannel(out))
+                .setLog(log)
+                .setApurochiKey(key(apurochi, "apurochiKey"))
+                .setKyoriKey(key(kyori, "kyoriKey"))
+                .build();
+    }
+
+    private byte[] message(int len) {
+        byte[] msg = new byte[len];
+        random.nextBytes(msg);
+        return msg;
+    }
+
+    @Test
+    void tunnelToChannelTunnel() throws IOException {
+        byte[][] msgs = new byte[LENGTHS.length][];
+        for (int i=0; i < msgs.length; i++) msgs[i] = message(LENGTHS[i]);
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Tunnel sender = tunnel(wire, new byte[0], false);
+        for (byte[] msg : msgs) assertTrue(sender.push(msg, 0, msg.length));
+        sender.flush();
+
+        ChannelTunnel receiver = channelTunnel(new ByteArrayOutputStream(), wire.toByteArray());
+        for (byte[] msg : msgs) {
+            ByteBuffer dst = ByteBuffer.allocate(msg.length + 3).position(3);
+            assertEquals(msg.length, receiver.pull(dst));
+            assertEquals(msg.length + 3, dst.position());
+            assertArrayEquals(msg, Arrays.copyOfRange(dst.array(), 3, dst.position()));
+        }
+    }
+
+    @Test
+    void channelTunnelToTunnel() throws IOException {
+        byte[][] msgs = new byte[LENGTHS.length][];
+        for (int i=0; i < msgs.length; i++) msgs[i] = message(LENGTHS[i]);
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        ChannelTunnel sender = channelTunnel(wire, new byte[0]);
+        for (byte[] msg : msgs) {
+            ByteBuffer src = ByteBuffer.allocateDirect(msg.length).put(msg).flip();
+            assertTrue(sender.push(src));
+            assertEquals(0, src.remaining());
+        }
+
+        Tunnel receiver = tunnel(new ByteArrayOutputStream(), wire.toByteArray(), false);
+        for (byte[] msg : msgs) assertArrayEquals(msg, receiver.pull());
+    }
+
+    @Test
+    void tooSmallDestinationThenRetry() throws IOException {
+        byte[] msg = message(5*BMPC+3), next = message(BMPC);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Tunnel sender = tunnel(wire, new byte[0], false);
+        sender.push(msg, 0, msg.length);
+        sender.push(next, 0, next.length);
+        sender.flush();
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        ChannelTunnel receiver = channelTunnel(new ByteArrayOutputStream(), wire.toByteArray(), log);
+        ByteBuffer small = ByteBuffer.allocate(msg.length-1);
+        assertEquals(-1, receiver.pull(small));
+        assertEquals(0, small.position());
+        assertTrue(log.toString().contains("Destination too small"));
+        assertFalse(log.toString().contains("keys saved"));
+
+        ByteBuffer dst = ByteBuffer.allocate(msg.length);
+        assertEquals(msg.length, receiver.pull(dst));
+        assertArrayEquals(msg, dst.array());
+        ByteBuffer after = ByteBuffer.allocate(next.length);
+        assertEquals(next.length, receiver.pull(after));
+        assertArrayEquals(next, after.array());
+    }
+
+    @Test
+    void taggedHeaderRefused() throws IOException {
+        byte[] msg = message(BMPC+1);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        tunnel(wire, new byte[0], true).push(msg, 0, msg.length);
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        ChannelTunnel receiver = channelTunnel(new ByteArrayOutputStream(), wire.toByteArray(), log);
+
+        // Refused every time, keys never saved for it
+        assertEquals(-1, receiver.pull(ByteBuffer.allocate(msg.length)));
+        assertEquals(-1, receiver.pull(ByteBuffer.allocate(msg.length)));
+        assertTrue(log.toString().contains("Tagged header"));
+        assertFalse(log.toString().contains("keys saved"));
+    }
+
+    // pushFile of src through a wire file, pullFile into dst
+    private long fileRoundTrip(Path src, Path dst) throws IOException {
+        Path wire = dir.resolve("wire");
+        try (FileChannel out = FileChannel.open(wire, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ChannelTunnel sender = new ChannelTunnel.Builder()
+                    .setIn(Channels.newChannel(new ByteArrayInputStream(new byte[0])))
+                    .setOut(out)
+                    .setLog(new ByteArrayOutputStream())
+                    .setApurochiKey(key(apurochi, "apurochiKey"))
+                    .setKyoriKey(key(kyori, "kyoriKey"))
+                    .build();
+            assertTrue(sender.pushFile(src));
+        }
+
+        try (FileChannel in = FileChannel.open(wire, StandardOpenOption.READ)) {
+            ChannelTunnel receiver = new ChannelTunnel.Builder()
+                    .setIn(in)
+                    .setOut(Channels.newChannel(new ByteArrayOutputStream()))
+                    .setLog(new ByteArrayOutputStream())
+                    .setApurochiKey(key(apurochi, "apurochiKey"))
+                    .setKyoriKey(key(kyori, "kyoriKey"))
+                    .build();
+            return receiver.pullFile(dst);
+        }
+    }
+
+    @Test
+    void filesReplaceTheirDestination() throws IOException {
+        Path src = dir.resolve("src"), dst = dir.resolve("dst");
+        for (int len : new int[]{ 0, 1, 5*BMPC+3 }) {
+            byte[] content = message(len);
+            Files.write(src, content);
+            Files.write(dst, message(10*BMPC)); // longer, cut down to the pulled file
+
+            assertEquals(len, fileRoundTrip(src, dst));
+            assertArrayEquals(content, Files.readAllBytes(dst));
+        }
+    }
+
+    @Test
+    void fileOverSeveralWindows() throws IOException {
+        apurochi = new Key.Keygen().setBmpc(16*1024).build().toBytes();
+        kyori = new Key.Keygen().setBmpc(16*1024).build().toBytes();
+
+        // Push windows of whole chests, pull ones of FILE_WINDOW bytes
+        Path src = dir.resolve("src"), dst = dir.resolve("dst");
+        byte[] block = message(1 << 20);
+        try (FileChannel out = FileChannel.open(src, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (long pos=0; pos < ChannelTunnel.FILE_WINDOW + 5; pos += block.length)
+                out.write(ByteBuffer.wrap(block, 0, (int)Math.min(block.length, ChannelTunnel.FILE_WINDOW + 5 - pos)));
+        }
+
+        assertEquals(ChannelTunnel.FILE_WINDOW + 5, fileRoundTrip(src, dst));
+        assertEquals(-1, Files.mismatch(src, dst));
+    }
+}
@@ -0,0 +1,81 @@
+package com.yudakan.sttp;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * ChestSizingTest Class
+ *
+ * Choices of a ChestSizing window by window, throughput given by hand.
+ *
+ * @author yka
+ * @version 1.0
+ */
+class ChestSizingTest {
+
+    /* Methods */
+    private static ChestSizing.State state(int min, int max, int window) {
+        return new ChestSizing.Builder().setMinBmpc(min).setMaxBmpc(max).setWindow(window).build().state();
+    }
+
+    // Window of messages of len bytes, each sent in nanos
+    private static int window(ChestSizing.State state, int msgfLen, int messages, long len, long nanos) {
+        int next = -1;
+        for (int i=0; i < messages; i++) next = state.next(msgfLen, len, nanos);
+        return next;
+    }
+
+    @Test
+    void waitsForAWholeWindow() {
+        ChestSizing.State state = state(16, 4096, 4);
+        assertEquals(-1, state.next(64, 1000, 1000));
+        assertEquals(-1, state.next(64, 1000, 1000));
+        assertEquals(-1, state.next(64, 1000, 1000));
+        assertEquals(256, state.next(64, 1000, 1000));
+    }
+
+    @Test
+    void growsAtMostFourTimesPerWindow() {
+        ChestSizing.State state = state(16, 65536, 2);
+        assertEquals(256, window(state, 64, 2, 30000, 1000));
+        assertEquals(1024, window(state, 256, 2, 30000, 1000));
+        assertEquals(4096, window(state, 1024, 2, 30000, 1000));
+        assertEquals(16384, window(state, 4096, 2, 30000, 1000));
+        assertEquals(32768, window(state, 16384, 2, 30000, 1000));
+        assertEquals(-1, window(state, 32768, 2, 30000, 1000));
+    }
+
+    @Test
+    void staysBetweenMinAndMax() {
+        assertEquals(256, window(state(16, 256, 1), 64, 1, 100000, 1000));
+        assertEquals(32, window(state(32, 4096, 1), 4096, 1, 1, 1000));
+    }
+
+    @Test
+    void halfFullChestsStay() {
+        assertEquals(-1, window(state(16, 4096, 1), 1024, 1, 600, 1000));
+        assertEquals(-1, window(state(16, 4096, 1), 1024, 1, 300, 1000));
+        assertEquals(256, window(state(16, 4096, 1), 1024, 1, 200, 1000));
+    }
+
+    @Test
+    void slowerGrowthIsUndoneForEightWindows() {
+        ChestSizing.State state = state(16, 4096, 1);
+        assertEquals(256, window(state, 64, 1, 1000, 1000));
+
+        // Same messages, half the throughput: back to 64
+        assertEquals(64, window(state, 256, 1, 1000, 2000));
+        for (int i=0; i < 7; i++) assertEquals(-1, window(state, 64, 1, 1000, 1000), "window " + i);
+        assertEquals(256, window(state, 64, 1, 1000, 1000));
+    }
+
+    @Test
+    void builderRefusesMinAboveMax() {
+        assertThrows(IllegalStateException.class, () -> new ChestSizing.Builder().setMinBmpc(100).setMaxBmpc(50).build());
+        assertThrows(IllegalArgumentException.class, () -> new ChestSizing.Builder().setMaxBmpc(ChestSizing.MAX_BMPC+1));
+    }
+}
@@ -0,0 +1,138 @@
+package com.yudakan.sttp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * KeyReservoirTest Class
+ *
+ * Reservoir files in a temporary directory, filled from seeded sources.
+ *
+ * @author yka
+ * @version 1.0
+ */
+class KeyReservoirTest {
+
+    /* Attributes */
+    private static final int HEADER_LEN = 24;
+
+    @TempDir
+    Path dir;
+
+
+    /* Methods */
+    private KeyReservoir reservoir(File f, int capacity, long seed) throws IOException {
+        return new KeyReservoir.Builder().setFile(f).setCapacity(capacity).setSource(RandomSource.seeded(seed)).build();
+    }
+
+    // Header of a reservoir: magic, capacity, write & read positions
+    private File header(int capacity, long write, long read) throws IOException {
+        File f = dir.resolve("reservoir").toFile();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.writeInt(0x53545452);
+            raf.writeInt(capacity);
+            raf.writeLong(write);
+            raf.writeLong(read);
+        }
+        return f;
+    }
+
+    // Descriptors of this process open on f
+    private static long openOn(File f) throws IOException {
+        final Path path = f.getCanonicalFile().toPath();
+        File[] fds = new File("/proc/self/fd").listFiles();
+        assumeTrue(fds != null, "Open files not listable here.");
+
+        long n = 0;
+        for (File fd : fds) {
+            try {
+                if (Files.readSymbolicLink(fd.toPath()).equals(path)) n++;
+            }
+            catch (IOException e) {
+                // closed meanwhile
+            }
+        }
+        return n;
+    }
+
+    @Test
+    void drawsWhatWasFilledOnceAndWipesIt() throws IOException {
+        File f = dir.resolve("reservoir").toFile();
+        byte[] expected = new byte[4096];
+        RandomSource.seeded(1).nextBytes(expected);
+
+        try (KeyReservoir reservoir = reservoir(f, 4096, 1)) {
+            reservoir.fill();
+            assertEquals(4096, reservoir.available());
+
+            byte[] drawn = new byte[100];
+            reservoir.nextBytes(drawn);
+            assertArrayEquals(Arrays.copyOf(expected, 100), drawn);
+            assertEquals(4096-100, reservoir.available());
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            byte[] wiped = new byte[100];
+            raf.seek(HEADER_LEN);
+            raf.readFully(wiped);
+            assertArrayEquals(new byte[100], wiped);
+        }
+    }
+
+    @Test
+    void reopenedReservoirLosesTheLeaseNeverReusesIt() throws IOException {
+        File f = dir.resolve("reservoir").toFile();
+        try (KeyReservoir reservoir = reservoir(f, 256 * 1024, 1)) {
+            reservoir.fill();
+            reservoir.nextBytes(new byte[10]);
+        }
+
+        // Whole lease of 64 KB gone, what is left after it stays
+        try (KeyReservoir reservoir = reservoir(f, 1, 2)) {
+            assertEquals(256 * 1024, reservoir.getCapacity());
+            assertEquals(256 * 1024 - 64 * 1024, reservoir.available());
+        }
+    }
+
+    @Test
+    void dryReservoirGeneratesLive() throws IOException {
+        byte[] expected = new byte[32];
+        RandomSource.seeded(3).nextBytes(expected);
+
+        try (KeyReservoir reservoir = reservoir(dir.resolve("reservoir").toFile(), 4096, 3)) {
+            byte[] drawn = new byte[32];
+            reservoir.nextBytes(drawn);
+            assertArrayEquals(expected, drawn);
+        }
+    }
+
+    @Test
+    void corruptedHeadersFailWithoutLeakingTheFile() throws IOException {
+        File negative = header(-5, 0, 0);
+        assertThrows(IllegalStateException.class, () -> reservoir(negative, 4096, 1));
+        assertEquals(0, openOn(negative), "reservoir left open");
+
+        File positions = header(4096, 10, 20);
+        assertThrows(IllegalStateException.class, () -> reservoir(positions, 4096, 1));
+        assertEquals(0, openOn(positions), "reservoir left open");
+
+        File tiny = header(1, 0, 0); // both water marks cut down to 1 byte
+        assertThrows(IllegalStateException.class, () ->
+                new KeyReservoir.Builder().setFile(tiny).setWaterMarks(2, 3).build());
+        assertEquals(0, openOn(tiny), "reservoir left open");
+    }
+}
@@ -0,0 +1,111 @@
+package com.yudakan.sttp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * KeyStateTest Class
+ *
+ * Key States persisted, reloaded & torn by hand in a temporary directory.
+ *
+ * @author yka
+ * @version 1.0
+ */
+class KeyStateTest {
+
+    /* Attributes */
+    private static final int HEADER_LEN = 12, SLOT_HEADER_LEN = 12;
+
+    @TempDir
+    Path dir;
+
+
+    /* Methods */
+    // Key rolled & persisted up to generation gens, bytes of every generation
+    private byte[][] persisted(File f, Key key, int gens) throws IOException {
+        byte[][] bytes = new byte[gens+1][];
+        try (KeyState state = new KeyState(f, key)) {
+            bytes[1] = key.getKey();
+            for (int gen=2; gen <= gens; gen++) {
+                key.getKey_ByRef()[0]++;
+                state.persist();
+                bytes[gen] = key.getKey();
+            }
+            assertEquals(gens, state.getGeneration());
+        }
+        return bytes;
+    }
+
+    // Flips a byte of the key in the slot of generation gen
+    private static void tear(File f, Key key, long gen) throws IOException {
+        final long at = HEADER_LEN + (gen % 2)*(SLOT_HEADER_LEN + key.getLength()) + SLOT_HEADER_LEN;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(at);
+            final int b = raf.read();
+            raf.seek(at);
+            raf.write(b ^ 0xff);
+        }
+    }
+
+    @Test
+    void reloadsTheNewestGeneration() throws IOException {
+        File f = dir.resolve("state").toFile();
+        Key key = new Key.Keygen().setBmpc(100).setAlgorithm(Hash.Algorithm.SHA_512_256).build();
+        byte[][] bytes = persisted(f, key, 5);
+
+        try (KeyState state = new KeyState(f)) {
+            assertEquals(5, state.getGeneration());
+            assertArrayEquals(bytes[5], state.getKey().getKey());
+            assertEquals(Hash.Algorithm.SHA_512_256, state.getKey().getAlgorithm());
+
+            // Goes on from there
+            state.persist();
+            assertEquals(6, state.getGeneration());
+        }
+    }
+
+    @Test
+    void tornSlotFallsBackOneGeneration() throws IOException {
+        File f = dir.resolve("state").toFile();
+        Key key = new Key.Keygen().setBmpc(100).build();
+        byte[][] bytes = persisted(f, key, 4);
+        tear(f, key, 4);
+
+        try (KeyState state = new KeyState(f)) {
+            assertEquals(3, state.getGeneration());
+            assertArrayEquals(bytes[3], state.getKey().getKey());
+        }
+    }
+
+    @Test
+    void unusableFilesFail() throws IOException {
+        File f = dir.resolve("state").toFile();
+        Key key = new Key.Keygen().setBmpc(100).build();
+        persisted(f, key, 2);
+        tear(f, key, 1);
+        tear(f, key, 2);
+        assertThrows(IllegalStateException.class, () -> new KeyState(f));
+
+        File other = dir.resolve("other").toFile();
+        key.saveAs(other);
+        assertThrows(IllegalStateException.class, () -> new KeyState(other));
+
+        // Still usable after failed loads
+        new KeyState(f, key).close();
+        try (KeyState state = new KeyState(f)) {
+            assertEquals(1, state.getGeneration());
+            assertArrayEquals(key.getKey(), state.getKey().getKey());
+        }
+    }
+}
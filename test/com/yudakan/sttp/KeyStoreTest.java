@@ -0,0 +1,119 @@
+package com.yudakan.sttp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * KeyStoreTest Class
+ *
+ * Key Stores in a temporary directory, keys rolled by hand between
+ * acquire & release.
+ *
+ * @author yka
+ * @version 1.0
+ */
+class KeyStoreTest {
+
+    /* Attributes */
+    @TempDir
+    Path dir;
+
+
+    /* Methods */
+    private KeyStore store(int capacity, int batch) {
+        return new KeyStore.Builder().setRoot(dir.toFile()).setCapacity(capacity).setBatch(batch).build();
+    }
+
+    private void create(KeyStore store, String... peers) throws IOException {
+        for (String peer : peers)
+            store.create(peer, new Key.Keygen().setBmpc(50).build(), new Key.Keygen().setBmpc(50).build());
+    }
+
+    private Key[] roll(KeyStore store, String peer) throws IOException { // Acquired, rolled & released
+        Key[] pair = store.acquire(peer);
+        pair[0].getKey_ByRef()[0]++;
+        pair[1].getKey_ByRef()[0]++;
+        store.release(peer);
+        return pair;
+    }
+
+    private byte[] onDisk(String peer, String key) throws IOException {
+        return new Key(dir.resolve(peer).resolve(key).toFile()).getKey();
+    }
+
+    @Test
+    void releasedKeysWrittenByBatch() throws IOException {
+        KeyStore store = store(10, 2);
+        create(store, "a", "b");
+        assertTrue(store.contains("a"));
+        assertFalse(store.contains("c"));
+
+        Key[] a = roll(store, "a");
+        assertFalse(Arrays.equals(a[0].getKey(), onDisk("a", "apurochiKey")));
+
+        Key[] b = roll(store, "b"); // second dirty pair, the whole batch goes
+        assertArrayEquals(a[0].getKey(), onDisk("a", "apurochiKey"));
+        assertArrayEquals(a[1].getKey(), onDisk("a", "kyoriKey"));
+        assertArrayEquals(b[0].getKey(), onDisk("b", "apurochiKey"));
+
+        Key[] again = roll(store, "a");
+        store.close();
+        assertArrayEquals(again[1].getKey(), onDisk("a", "kyoriKey"));
+    }
+
+    @Test
+    void leastRecentlyUsedOutButNotInUse() throws IOException {
+        KeyStore store = store(2, 100);
+        create(store, "a", "b", "c");
+        assertEquals(2, store.getCached());
+
+        // Dirty pair written before it leaves
+        Key[] a = roll(store, "a");
+        roll(store, "b");
+        roll(store, "c");
+        assertEquals(2, store.getCached());
+        assertArrayEquals(a[0].getKey(), onDisk("a", "apurochiKey"));
+
+        // Cold pair loaded again, same keys
+        Key[] reloaded = store.acquire("a");
+        assertArrayEquals(a[0].getKey(), reloaded[0].getKey());
+        store.acquire("b");
+        store.acquire("c");
+        assertEquals(3, store.getCached()); // all of them in use
+    }
+
+    @Test
+    void onePeerOneTunnel() throws IOException {
+        KeyStore store = store(10, 10);
+        create(store, "a");
+
+        store.acquire("a");
+        assertThrows(IllegalStateException.class, () -> store.acquire("a"));
+        assertThrows(IllegalStateException.class, () -> create(store, "a"));
+
+        store.release("a");
+        store.acquire("a");
+    }
+
+    @Test
+    void peerIdsStayUnderTheRoot() throws IOException {
+        KeyStore store = store(10, 10);
+        for (String peer : new String[]{ "", ".", "..", "a/b", "../a", "a b" })
+            assertThrows(IllegalArgumentException.class, () -> store.acquire(peer), peer);
+
+        assertThrows(IllegalStateException.class, () -> store.acquire("unknown"));
+        assertThrows(IllegalArgumentException.class, () -> new KeyStore.Builder().setCapacity(0));
+    }
+}
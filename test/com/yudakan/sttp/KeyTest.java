@@ -0,0 +1,61 @@
+package com.yudakan.sttp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * KeyTest Class
+ *
+ * Key Files saved & loaded in a temporary directory.
+ *
+ * @author yka
+ * @version 1.0
+ */
+class KeyTest {
+
+    /* Attributes */
+    @TempDir
+    Path dir;
+
+
+    /* Methods */
+    private long tmpFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".tmp")).count();
+        }
+    }
+
+    @Test
+    void savedKeyReplacesTheOldOne() throws IOException {
+        File f = dir.resolve("key").toFile();
+        new Key.Keygen().setBmpc(100).build().saveAs(f);
+
+        Key key = new Key.Keygen().setBmpc(200).build();
+        key.saveAs(f);
+
+        assertArrayEquals(key.getKey(), new Key(f).getKey());
+        assertEquals(0, tmpFiles());
+    }
+
+    @Test
+    void failedSaveLeavesNoTempFile() throws IOException {
+        File busy = dir.resolve("busy").toFile(); // a directory with something in it can't be replaced
+        Files.createDirectories(busy.toPath().resolve("inside"));
+
+        byte[] bytes = new Key.Keygen().setBmpc(100).build().toBytes();
+        assertThrows(IOException.class, () -> Key.saveBytesAs(bytes, busy));
+        assertEquals(0, tmpFiles());
+    }
+}
@@ -0,0 +1,234 @@
+package com.yudakan.sttp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelLinkTest Class
+ *
+ * Links over loopback, some through a proxy that drops every connection
+ * after a few hundred KB so they have to resume.
+ *
+ * @author yka
+ * @version 1.0
+ */
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class TunnelLinkTest {
+
+    /* Attributes */
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<AutoCloseable> closing = new ArrayList<>();
+
+
+    /* Methods */
+    @AfterEach
+    void close() throws Exception {
+        for (AutoCloseable c : closing) c.close();
+        executor.shutdownNow();
+    }
+
+    // Forwards to target, every connection reset once it carried about limit bytes
+    private ServerSocket proxy(int target, int limit, AtomicInteger drops) throws IOException {
+        ServerSocket proxy = new ServerSocket(0);
+        closing.add(proxy);
+        executor.submit(() -> {
+            while (!proxy.isClosed()) {
+                final Socket a = proxy.accept(), b = new Socket("localhost", target);
+                final AtomicInteger carried = new AtomicInteger();
+                final Runnable drop = () -> {
+                    try {
+                        a.setSoLinger(true, 0);
+                        b.setSoLinger(true, 0);
+                        a.close();
+                        b.close();
+                    }
+                    catch (IOException e) {}
+                };
+
+                for (Socket[] way : new Socket[][]{ { a, b }, { b, a } })
+                    executor.submit(() -> {
+                        byte[] buf = new byte[8192];
+                        try {
+                            InputStream in = way[0].getInputStream();
+                            OutputStream out = way[1].getOutputStream();
+                            for (int n; (n = in.read(buf)) != -1; ) {
+                                out.write(buf, 0, n);
+                                if (carried.addAndGet(n) > limit) {
+                                    drops.incrementAndGet();
+                                    break;
+                                }
+                            }
+                        }
+                        catch (IOException e) {}
+                        drop.run();
+                    });
+            }
+            return null;
+        });
+
+        return proxy;
+    }
+
+    // Two ends over server, the dialing one through port
+    private TunnelLink[] pair(ServerSocket server, int port, int attempts) throws Exception {
+        Future<TunnelLink> accepted = executor.submit(() -> new TunnelLink.Builder()
+                .setSocket(server.accept())
+                .setReconnector(TunnelLink.Reconnector.accept(server))
+                .setRetry(attempts, 20, TimeUnit.MILLISECONDS)
+                .build());
+        TunnelLink dialed = new TunnelLink.Builder()
+                .setSocket(new Socket("localhost", port))
+                .setReconnector(TunnelLink.Reconnector.dial("localhost", port))
+                .setRetry(attempts, 20, TimeUnit.MILLISECONDS)
+                .build();
+
+        TunnelLink[] links = { dialed, accepted.get() };
+        closing.addAll(Arrays.asList(links));
+        return links;
+    }
+
+    private ServerSocket server() throws IOException {
+        ServerSocket server = new ServerSocket(0);
+        server.setSoTimeout(20_000);
+        closing.add(server);
+        return server;
+    }
+
+    @Test
+    void bytesResumeBothWays() throws Exception {
+        ServerSocket server = server();
+        AtomicInteger drops = new AtomicInteger();
+        TunnelLink[] links = pair(server, proxy(server.getLocalPort(), 300_000, drops).getLocalPort(), 20);
+
+        Random random = new Random(3);
+        byte[][] data = { new byte[3_000_000], new byte[3_000_000] };
+        for (byte[] d : data) random.nextBytes(d);
+
+        List<Future<byte[]>> read = new ArrayList<>();
+        for (int i=0; i < 2; i++) {
+            final OutputStream out = links[i].getOutputStream();
+            final InputStream in = links[1-i].getInputStream();
+            final byte[] d = data[i];
+            executor.submit(() -> {
+                for (int k=0; k < d.length; k += 64*1024) out.write(d, k, Math.min(64*1024, d.length-k));
+                out.flush();
+                return null;
+            });
+            read.add(executor.submit(() -> new DataInputStream(in).readNBytes(d.length)));
+        }
+
+        assertArrayEquals(data[0], read.get(0).get());
+        assertArrayEquals(data[1], read.get(1).get());
+        assertTrue(drops.get() > 0);
+        assertTrue(links[0].getResumes() > 0);
+    }
+
+    @Test
+    void tunnelMessagesResume() throws Exception {
+        ServerSocket server = server();
+        AtomicInteger drops = new AtomicInteger();
+        TunnelLink[] links = pair(server, proxy(server.getLocalPort(), 200_000, drops).getLocalPort(), 20);
+
+        byte[] apurochi = new Key.Keygen().setBmpc(1000).build().toBytes();
+        byte[] kyori = new Key.Keygen().setBmpc(1000).build().toBytes();
+        Tunnel[] tunnels = new Tunnel[2];
+        for (int i=0; i < 2; i++)
+            tunnels[i] = new Tunnel.Builder()
+                    .setLink(links[i])
+                    .setLog(new ByteArrayOutputStream())
+                    .setApurochiKey(new Key(apurochi))
+                    .setKyoriKey(new Key(kyori))
+                    .setSaveKeys(false)
+                    .build();
+
+        Random random = new Random(4);
+        List<byte[]> msgs = new ArrayList<>();
+        for (int i=0; i < 40; i++) {
+            byte[] msg = new byte[random.nextInt(100_000)];
+            random.nextBytes(msg);
+            msgs.add(msg);
+        }
+
+        Future<Boolean> pushed = executor.submit(() -> {
+            for (byte[] msg : msgs)
+                if (!tunnels[0].push(msg, 0, msg.length)) return false;
+            return true;
+        });
+        for (byte[] msg : msgs) assertArrayEquals(msg, tunnels[1].pull());
+
+        assertTrue(pushed.get());
+        assertTrue(drops.get() > 0);
+    }
+
+    @Test
+    void closeEndsThePeer() throws Exception {
+        ServerSocket server = server();
+        TunnelLink[] links = pair(server, server.getLocalPort(), 3);
+
+        links[0].getOutputStream().write(7);
+        links[0].getOutputStream().flush();
+        links[0].close();
+
+        InputStream in = links[1].getInputStream();
+        assertEquals(7, in.read());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    void lostLinkFailsFast() throws Exception {
+        ServerSocket server = server();
+        server.setSoTimeout(300);
+        Future<TunnelLink> accepted = executor.submit(() -> new TunnelLink.Builder()
+                .setSocket(server.accept())
+                .setReconnector(TunnelLink.Reconnector.accept(server))
+                .setRetry(2, 10, TimeUnit.MILLISECONDS)
+                .build());
+
+        // Nobody listens on port 1, the dialing end can't come back
+        Socket socket = new Socket("localhost", server.getLocalPort());
+        TunnelLink dialed = new TunnelLink.Builder()
+                .setSocket(socket)
+                .setReconnector(TunnelLink.Reconnector.dial("localhost", 1))
+                .setRetry(2, 10, TimeUnit.MILLISECONDS)
+                .build();
+        closing.add(dialed);
+        closing.add(accepted.get());
+
+        socket.setSoLinger(true, 0);
+        socket.close();
+
+        assertThrows(IOException.class, () -> dialed.getInputStream().read());
+        final long t = System.nanoTime();
+        IOException e = assertThrows(IOException.class, () -> {
+            dialed.getOutputStream().write(1);
+            dialed.getOutputStream().flush();
+        });
+        assertEquals("Link lost.", e.getMessage());
+        assertTrue(System.nanoTime()-t < TimeUnit.MILLISECONDS.toNanos(500));
+    }
+}
@@ -0,0 +1,158 @@
+package com.yudakan.sttp;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelMetricsTest Class
+ *
+ * Figures of metered tunnels checked against the bytes they put in
+ * memory, and the JFR events of a recording.
+ *
+ * @author yka
+ * @version 1.0
+ */
+class TunnelMetricsTest {
+
+    /* Attributes */
+    private static final int BMPC = 100;
+    private static final int[] LENGTHS = { 1, BMPC, BMPC+1, 5*BMPC+3, 2000*BMPC+7 };
+    private final Random random = new Random(9);
+    private byte[] apurochi, kyori;
+
+    @TempDir
+    Path dir;
+
+
+    /* Methods */
+    @BeforeEach
+    void keys() {
+        apurochi = new Key.Keygen().setBmpc(BMPC).build().toBytes();
+        kyori = new Key.Keygen().setBmpc(BMPC).build().toBytes();
+    }
+
+    private Tunnel tunnel(byte[] in, ByteArrayOutputStream out, TunnelMetrics metrics, boolean trimTail) throws IOException {
+        return new Tunnel.Builder()
+                .setIn(new ByteArrayInputStream(in))
+                .setOut(out)
+                .setLog(new ByteArrayOutputStream())
+                .setApurochiKey(new Key(apurochi))
+                .setKyoriKey(new Key(kyori))
+                .setSaveKeys(false)
+                .setTrimTail(trimTail)
+                .setMetrics(metrics)
+                .build();
+    }
+
+    // Messages of LENGTHS pushed into wire
+    private long push(ByteArrayOutputStream wire, TunnelMetrics metrics, boolean trimTail) throws IOException {
+        Tunnel sender = tunnel(new byte[0], wire, metrics, trimTail);
+        long bytes = 0;
+        for (int len : LENGTHS) {
+            byte[] msg = new byte[len];
+            random.nextBytes(msg);
+            assertTrue(sender.push(msg, 0, len));
+            bytes += len;
+        }
+        sender.flush();
+        return bytes;
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void countersMatchTheWire(boolean trimTail) throws IOException {
+        long chests = 0;
+        for (int len : LENGTHS) chests += (len + BMPC-1) / BMPC;
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        TunnelMetrics.Counters sent = TunnelMetrics.counters();
+        final long bytes = push(wire, sent, trimTail);
+        assertEquals(LENGTHS.length, sent.getMessagesSent());
+        assertEquals(bytes, sent.getBytesSent());
+        assertEquals(chests, sent.getChestsSent());
+        assertEquals(wire.size(), sent.getWireBytesSent());
+
+        TunnelMetrics.Counters received = TunnelMetrics.counters();
+        Tunnel receiver = tunnel(wire.toByteArray(), new ByteArrayOutputStream(), received, false);
+        for (int i=0; i < LENGTHS.length; i++) receiver.pull();
+        assertEquals(LENGTHS.length, received.getMessagesReceived());
+        assertEquals(bytes, received.getBytesReceived());
+        assertEquals(chests, received.getChestsReceived());
+        assertEquals(wire.size(), received.getWireBytesReceived());
+        assertEquals(0, received.getFailures());
+    }
+
+    @Test
+    void corruptedChestIsPointedAt() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        tunnel(new byte[0], wire, null, false).push(new byte[5*BMPC], 0, 5*BMPC);
+        byte[] bytes = wire.toByteArray();
+        final int chestSize = (bytes.length-4) / 5;
+        bytes[4 + 3*chestSize + 10] ^= 1; // fourth chest
+
+        List<Long> corrupted = new ArrayList<>();
+        TunnelMetrics.Counters counters = TunnelMetrics.counters();
+        Tunnel receiver = tunnel(bytes, new ByteArrayOutputStream(), sample -> {
+            assertFalse(sample.isPush());
+            assertFalse(sample.isOk());
+            corrupted.add(sample.getCorruptedChest());
+            counters.onMessage(sample);
+        }, false);
+
+        assertNull(receiver.pull());
+        assertEquals(List.of(3L), corrupted);
+        assertEquals(1, counters.getFailures());
+        assertEquals(1, counters.getIntegrityFailures());
+        assertEquals(0, counters.getMessagesReceived());
+    }
+
+    @Test
+    void eventsOfARecording() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        final long bytes;
+        final Path file = dir.resolve("tunnel.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("com.yudakan.sttp.Message").withoutThreshold();
+            recording.start();
+            bytes = push(wire, null, false); // recorded without listener
+            recording.stop();
+            recording.dump(file);
+        }
+
+        long events = 0, recorded = 0, wireBytes = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            if (!event.getEventType().getName().equals("com.yudakan.sttp.Message")) continue;
+
+            assertTrue(event.getBoolean("push"));
+            assertTrue(event.getBoolean("ok"));
+            assertEquals(-1, event.getLong("corruptedChest"));
+            events++;
+            recorded += event.getLong("bytes");
+            wireBytes += event.getLong("wireBytes");
+        }
+        assertEquals(LENGTHS.length, events);
+        assertEquals(bytes, recorded);
+        assertEquals(wire.size(), wireBytes);
+    }
+}
@@ -0,0 +1,197 @@
+package com.yudakan.sttp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelMuxTest Class
+ *
+ * Two muxes over tunnels on both ends of a loopback connection.
+ *
+ * @author yka
+ * @version 1.0
+ */
+@Timeout(value = 60, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+class TunnelMuxTest {
+
+    /* Attributes */
+    private static final int BMPC = 1000;
+    private final Random random = new Random(6);
+    private final List<TunnelMux> muxes = new ArrayList<>();
+    private byte[] apurochi, kyori;
+    private Socket a, b;
+    private InputStream aIn, bIn;
+    private OutputStream aOut, bOut;
+
+
+    /* Methods */
+    @BeforeEach
+    void sockets() throws IOException {
+        apurochi = new Key.Keygen().setBmpc(BMPC).build().toBytes();
+        kyori = new Key.Keygen().setBmpc(BMPC).build().toBytes();
+
+        try (ServerSocket server = new ServerSocket(0)) {
+            a = new Socket("localhost", server.getLocalPort());
+            b = server.accept();
+        }
+        aIn = a.getInputStream();
+        aOut = a.getOutputStream();
+        bIn = b.getInputStream();
+        bOut = b.getOutputStream();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        for (TunnelMux mux : muxes) mux.close();
+        a.close();
+        b.close();
+    }
+
+    // Same keys on both ends, the one that pulls the hello swaps them
+    private TunnelMux mux(InputStream in, OutputStream out, boolean initiator, ForkJoinPool pool) throws IOException {
+        Tunnel tunnel = new Tunnel.Builder()
+                .setIn(in)
+                .setOut(out)
+                .setLog(new ByteArrayOutputStream())
+                .setApurochiKey(new Key(apurochi))
+                .setKyoriKey(new Key(kyori))
+                .setSaveKeys(false)
+                .setParallel(pool)
+                .build();
+
+        TunnelMux mux = new TunnelMux.Builder().setTunnel(tunnel).setInitiator(initiator).build();
+        muxes.add(mux);
+        return mux;
+    }
+
+    private TunnelMux[] start(InputStream bIn, ForkJoinPool pool) throws Exception {
+        TunnelMux initiator = mux(aIn, aOut, true, pool), peer = mux(bIn, bOut, false, pool);
+        Thread hello = new Thread(() -> {
+            try { peer.start(); }
+            catch (IOException e) { throw new IllegalStateException(e); }
+        });
+        hello.start();
+        initiator.start();
+        hello.join();
+
+        return new TunnelMux[]{ initiator, peer };
+    }
+
+    private byte[] message(int len) {
+        byte[] msg = new byte[len];
+        random.nextBytes(msg);
+        return msg;
+    }
+
+    @Test
+    void smallMessageNotHeldBehindABigOne() throws Exception {
+        final int big = 8 << 20;
+        final CountDownLatch gate = new CountDownLatch(1);
+        InputStream gated = new FilterInputStream(bIn) { // Only the first MB until the gate opens
+            private long read;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (read >= 1 << 20) {
+                    try { gate.await(); }
+                    catch (InterruptedException e) { throw new IOException(e); }
+                }
+                final int n = super.read(b, off, len);
+                if (n > 0) read += n;
+                return n;
+            }
+        };
+        TunnelMux[] ends = start(gated, null);
+
+        byte[] large = message(big), small = message(100);
+        assertTrue(ends[0].open(1).send(large));
+        assertTrue(ends[0].open(2).send(small));
+
+        // Through while most of the big one can't be read yet
+        assertArrayEquals(small, ends[1].open(2).receive());
+        gate.countDown();
+        assertArrayEquals(large, ends[1].open(1).receive());
+    }
+
+    @Test
+    void streamsBothWaysInParallel() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            TunnelMux[] ends = start(bIn, pool);
+            List<List<byte[]>> sent = new ArrayList<>();
+            for (int i=0; i < 2; i++) {
+                List<byte[]> msgs = new ArrayList<>();
+                for (int j=0; j < 20; j++) msgs.add(message(random.nextInt(200*BMPC)));
+                sent.add(msgs);
+                for (byte[] msg : msgs) assertTrue(ends[i].open(7).send(msg));
+            }
+
+            for (int i=0; i < 2; i++)
+                for (byte[] msg : sent.get(i)) assertArrayEquals(msg, ends[1-i].open(7).receive());
+        }
+        finally { pool.shutdown(); }
+    }
+
+    @Test
+    void closeEndsThePeerStreams() throws Exception {
+        TunnelMux[] ends = start(bIn, null);
+        byte[] msg = message(3*BMPC);
+        assertTrue(ends[0].open(3).send(msg));
+        ends[0].close();
+
+        assertFalse(ends[0].open(3).send(msg));
+        assertArrayEquals(msg, ends[1].open(3).receive());
+        assertNull(ends[1].open(3).receive());
+        assertNull(ends[1].open(4).receive()); // opened after the end
+        assertFalse(ends[1].isBroken());
+    }
+
+    @Test
+    void brokenTunnelFailsEveryStream() throws Exception {
+        TunnelMux[] ends = start(bIn, null);
+        a.close(); // a's pushes fail, b's pulls hit end of stream
+
+        assertNull(ends[1].open(1).receive());
+        assertNull(ends[1].open(2).receive());
+        assertTrue(ends[1].isBroken());
+
+        ends[0].open(1).send(message(BMPC));
+        while (!ends[0].isBroken()) Thread.sleep(10);
+        assertFalse(ends[0].open(2).send(message(1)));
+    }
+
+    @Test
+    void closeBeforeOrAfterAFailedStart() throws Exception {
+        mux(aIn, aOut, true, null).close();
+
+        TunnelMux peer = mux(new ByteArrayInputStream(new byte[0]), bOut, false, null);
+        assertThrows(IOException.class, peer::start);
+        peer.close();
+        assertTrue(peer.isClosed());
+    }
+}
@@ -0,0 +1,126 @@
+package com.yudakan.sttp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelRunnerTest Class
+ *
+ * A runner serving & connecting to itself over loopback, both ends with
+ * the same key pair.
+ *
+ * @author yka
+ * @version 1.0
+ */
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class TunnelRunnerTest {
+
+    /* Attributes */
+    private final byte[] apurochi = new Key.Keygen().setBmpc(64).build().toBytes();
+    private final byte[] kyori = new Key.Keygen().setBmpc(64).build().toBytes();
+    private final List<Key[]> released = Collections.synchronizedList(new ArrayList<>());
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private TunnelRunner runner;
+
+
+    /* Methods */
+    @AfterEach
+    void close() throws Exception {
+        serverSocket.close();
+        acceptor.join();
+        runner.close();
+    }
+
+    private TunnelRunner runner(boolean virtual) {
+        return runner = new TunnelRunner.Builder()
+                .setKeys(new TunnelServer.KeyProvider() {
+                    @Override
+                    public Key[] acquire(SocketAddress peer) {
+                        return new Key[]{ new Key(apurochi), new Key(kyori) };
+                    }
+
+                    @Override
+                    public void release(SocketAddress peer, Key apurochiKey, Key kyoriKey) {
+                        released.add(new Key[]{ apurochiKey, kyoriKey });
+                    }
+                })
+                .setLog(log)
+                .setVirtual(virtual)
+                .build();
+    }
+
+    private void serve(TunnelRunner.Handler handler) throws IOException {
+        serverSocket = new ServerSocket(0);
+        acceptor = new Thread(() -> {
+            try { runner.serve(serverSocket, handler); }
+            catch (IOException e) { throw new IllegalStateException(e); }
+        });
+        acceptor.start();
+    }
+
+    @Test
+    void echoesAndReleasesRolledKeys() throws Exception {
+        runner(true);
+        assertEquals(Runtime.version().feature() >= 21, runner.isVirtual());
+
+        byte[] hello = "hello".getBytes();
+        serve(sttp -> {
+            sttp.push(hello);
+            assertArrayEquals(hello, sttp.pull());
+        });
+
+        List<Future<?>> clients = new ArrayList<>();
+        for (int i=0; i < 20; i++)
+            clients.add(runner.connect("localhost", serverSocket.getLocalPort(), sttp -> sttp.push(sttp.pull())));
+        for (Future<?> client : clients) client.get();
+
+        while (released.size() < 40 || runner.getActive() > 0) Thread.sleep(10);
+        assertEquals("", log.toString());
+
+        // Both ends of a tunnel give back the same keys, rolled past the ones they got
+        Map<String, Integer> ends = new HashMap<>();
+        for (Key[] pair : released) {
+            assertFalse(Arrays.equals(apurochi, pair[0].toBytes()));
+            assertFalse(Arrays.equals(kyori, pair[1].toBytes()));
+            ends.merge(Arrays.toString(pair[0].toBytes()) + Arrays.toString(pair[1].toBytes()), 1, Integer::sum);
+        }
+        assertEquals(20, ends.size());
+        for (int n : ends.values()) assertEquals(2, n);
+    }
+
+    @Test
+    void failedHandlerIsLoggedAndReleasesItsKeys() throws Exception {
+        runner(false);
+        assertFalse(runner.isVirtual());
+
+        serve(sttp -> { throw new IOException("Handler broke."); });
+        runner.connect("localhost", serverSocket.getLocalPort(), Tunnel::pull).get(); // nothing to pull, the runner logs it
+
+        while (released.size() < 2 || runner.getActive() > 0) Thread.sleep(10);
+        assertTrue(log.toString().contains("Handler broke."));
+        assertTrue(log.toString().contains("failed."));
+    }
+}
@@ -0,0 +1,223 @@
+package com.yudakan.sttp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelServerTest Class
+ *
+ * A TunnelServer on loopback with blocking Tunnel clients, which push
+ * with the key the server pulls with & the other way round.
+ *
+ * @author yka
+ * @version 1.0
+ */
+@Timeout(value = 60, unit = TimeUnit.SECONDS)
+class TunnelServerTest {
+
+    /* Attributes */
+    private static final int BMPC = 500;
+    private final Random random = new Random(8);
+    private final List<Socket> sockets = new ArrayList<>();
+    private final List<Exception> closedWith = Collections.synchronizedList(new ArrayList<>());
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private byte[] apurochi, kyori;
+    private TunnelServer server;
+    private CountDownLatch released;
+
+
+    /* Methods */
+    @BeforeEach
+    void keys() {
+        apurochi = new Key.Keygen().setBmpc(BMPC).build().toBytes();
+        kyori = new Key.Keygen().setBmpc(BMPC).build().toBytes();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        for (Socket socket : sockets) socket.close();
+        server.close();
+    }
+
+    private TunnelServer server(int sessions, TunnelServer.Listener listener, TunnelServer.Builder builder) throws IOException {
+        released = new CountDownLatch(sessions);
+        TunnelServer.Listener closing = new TunnelServer.Listener() {
+            @Override
+            public void onOpen(TunnelServer.Session session) { listener.onOpen(session); }
+
+            @Override
+            public void onMessage(TunnelServer.Session session, byte[] msg) { listener.onMessage(session, msg); }
+
+            @Override
+            public void onWritable(TunnelServer.Session session) { listener.onWritable(session); }
+
+            @Override
+            public void onClose(TunnelServer.Session session, Exception cause) {
+                if (cause != null) closedWith.add(cause);
+            }
+        };
+
+        server = builder
+                .setAddress(new InetSocketAddress("localhost", 0))
+                .setKeys(new TunnelServer.KeyProvider() {
+                    @Override
+                    public Key[] acquire(SocketAddress peer) {
+                        return new Key[]{ new Key(apurochi), new Key(kyori) };
+                    }
+
+                    @Override
+                    public void release(SocketAddress peer, Key apurochiKey, Key kyoriKey) {
+                        released.countDown();
+                    }
+                })
+                .setListener(closing)
+                .setLog(log)
+                .build();
+        server.start();
+        return server;
+    }
+
+    // Pushes first, with the key the server pulls with
+    private Tunnel client(byte[] pushKey, byte[] pullKey) throws IOException {
+        Socket socket = new Socket("localhost", server.getPort());
+        sockets.add(socket);
+
+        Tunnel tunnel = new Tunnel.Builder()
+                .setIn(socket.getInputStream())
+                .setOut(socket.getOutputStream())
+                .setLog(new ByteArrayOutputStream())
+                .setApurochiKey(new Key(pushKey))
+                .setKyoriKey(new Key(pullKey))
+                .setSaveKeys(false)
+                .build();
+        tunnel.sender();
+        return tunnel;
+    }
+
+    private Tunnel client() throws IOException {
+        return client(kyori, apurochi);
+    }
+
+    private byte[] message(int len) {
+        byte[] msg = new byte[len];
+        random.nextBytes(msg);
+        return msg;
+    }
+
+    @Test
+    void echoesManyClientsOnTwoLoops() throws Exception {
+        server(8, (TunnelServer.Listener)(session, msg) -> session.send(msg), new TunnelServer.Builder().setEventLoops(2));
+
+        // Many chests split across reads of the event loop
+        List<CompletableFuture<Void>> clients = new ArrayList<>();
+        for (int i=0; i < 8; i++) {
+            final Tunnel tunnel = client();
+            final List<byte[]> msgs = new ArrayList<>();
+            for (int len : new int[]{ 0, 1, BMPC, BMPC+1, 300*BMPC+7 }) msgs.add(message(len));
+
+            clients.add(CompletableFuture.runAsync(() -> {
+                for (byte[] msg : msgs) {
+                    assertTrue(tunnel.push(msg, 0, msg.length));
+                    assertArrayEquals(msg, tunnel.pull());
+                }
+            }));
+        }
+        for (CompletableFuture<Void> client : clients) client.get();
+        assertEquals(8, server.getConnections());
+
+        for (Socket socket : sockets) socket.close();
+        assertTrue(released.await(10, TimeUnit.SECONDS));
+        while (server.getConnections() > 0) Thread.sleep(10);
+        assertEquals(List.of(), closedWith);
+    }
+
+    @Test
+    void rejectedSendResumesOnWritable() throws Exception {
+        final AtomicBoolean resumed = new AtomicBoolean();
+        server(1, new TunnelServer.Listener() {
+            private byte[] held;
+
+            @Override
+            public void onMessage(TunnelServer.Session session, byte[] msg) {
+                assertTrue(session.send(msg));
+                if (!session.send(msg)) held = msg; // over the limit while the first one waits
+            }
+
+            @Override
+            public void onWritable(TunnelServer.Session session) {
+                resumed.set(true);
+                session.send(held);
+            }
+        }, new TunnelServer.Builder().setEventLoops(1).setMaxPendingBytes(3*BMPC));
+
+        Tunnel tunnel = client();
+        byte[] msg = message(2*BMPC);
+        tunnel.push(msg, 0, msg.length);
+        assertArrayEquals(msg, tunnel.pull());
+        assertArrayEquals(msg, tunnel.pull());
+        assertTrue(resumed.get());
+    }
+
+    @Test
+    void acceptsNoMoreThanMaxConnections() throws Exception {
+        server(2, (TunnelServer.Listener)(session, msg) -> session.send(msg), new TunnelServer.Builder().setMaxConnections(1));
+
+        Tunnel first = client(), second = client();
+        byte[] msg = message(10);
+        first.push(msg, 0, msg.length);
+        assertArrayEquals(msg, first.pull());
+
+        // Connected, but not accepted while the first one is open
+        second.push(msg, 0, msg.length);
+        CompletableFuture<byte[]> answer = CompletableFuture.supplyAsync(second::pull);
+        assertThrows(TimeoutException.class, () -> answer.get(300, TimeUnit.MILLISECONDS));
+
+        sockets.get(0).close();
+        assertArrayEquals(msg, answer.get());
+    }
+
+    @Test
+    void wrongKeyOrTooBigMessageClosesTheSession() throws Exception {
+        server(2, (TunnelServer.Listener)(session, msg) -> session.send(msg), new TunnelServer.Builder().setMaxMessageSize(BMPC));
+
+        Tunnel wrong = client(apurochi, kyori);
+        wrong.push(message(10), 0, 10);
+        assertNull(wrong.pull());
+
+        Tunnel big = client();
+        big.push(message(BMPC+1), 0, BMPC+1);
+        assertNull(big.pull());
+
+        assertTrue(released.await(10, TimeUnit.SECONDS));
+        assertEquals(2, closedWith.size());
+        assertTrue(log.toString().contains("Hash error: Corrupted Integrity or Wrong Key."));
+        assertTrue(log.toString().contains("message too big"));
+        assertFalse(log.toString().contains("Unable to open session."));
+    }
+}
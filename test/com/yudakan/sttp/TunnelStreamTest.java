@@ -0,0 +1,195 @@
+package com.yudakan.sttp;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelStreamTest Class
+ *
+ * TunnelOutputStreams writing into memory & TunnelInputStreams reading
+ * the same bytes back, in writes & reads of odd sizes.
+ *
+ * @author yka
+ * @version 1.0
+ */
+class TunnelStreamTest {
+
+    /* Attributes */
+    private static final int BMPC = 100;
+    private final Random random = new Random(7);
+    private byte[] apurochi, kyori;
+
+
+    /* Methods */
+    @BeforeEach
+    void keys() {
+        apurochi = new Key.Keygen().setBmpc(BMPC).build().toBytes();
+        kyori = new Key.Keygen().setBmpc(BMPC).build().toBytes();
+    }
+
+    private Tunnel tunnel(InputStream in, OutputStream out, Consumer<Tunnel.Builder> setup) throws IOException {
+        Tunnel.Builder builder = new Tunnel.Builder()
+                .setIn(in)
+                .setOut(out)
+                .setLog(new ByteArrayOutputStream())
+                .setApurochiKey(new Key(apurochi))
+                .setKyoriKey(new Key(kyori))
+                .setSaveKeys(false);
+        setup.accept(builder);
+        return builder.build();
+    }
+
+    private Tunnel sender(ByteArrayOutputStream wire, Consumer<Tunnel.Builder> setup) throws IOException {
+        return tunnel(new ByteArrayInputStream(new byte[0]), wire, setup);
+    }
+
+    private Tunnel receiver(byte[] wire, Consumer<Tunnel.Builder> setup) throws IOException {
+        return tunnel(new ByteArrayInputStream(wire), new ByteArrayOutputStream(), setup);
+    }
+
+    private byte[] data(int len) {
+        byte[] data = new byte[len];
+        random.nextBytes(data);
+        return data;
+    }
+
+    // Writes of 1 to 3 chests & some single bytes
+    private void write(OutputStream out, byte[] data) throws IOException {
+        for (int off=0; off < data.length; ) {
+            if (random.nextInt(10) == 0) out.write(data[off++]);
+            else {
+                final int n = Math.min(data.length-off, 1 + random.nextInt(3*BMPC));
+                out.write(data, off, n);
+                off += n;
+            }
+        }
+    }
+
+    // Reads of up to 250 bytes & some single bytes until the end marker
+    private byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        byte[] buf = new byte[250];
+        while (true) {
+            if (random.nextInt(10) == 0) {
+                final int b = in.read();
+                if (b == -1) break;
+                all.write(b);
+            }
+            else {
+                final int n = in.read(buf, 0, 1 + random.nextInt(buf.length));
+                if (n == -1) break;
+                all.write(buf, 0, n);
+            }
+        }
+        return all.toByteArray();
+    }
+
+    private void roundTrip(byte[] data, Consumer<Tunnel.Builder> setup) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        try (TunnelOutputStream out = new TunnelOutputStream(sender(wire, setup), 3)) {
+            write(out, data);
+        }
+
+        try (TunnelInputStream in = new TunnelInputStream(receiver(wire.toByteArray(), setup))) {
+            assertArrayEquals(data, readAll(in), data.length + " bytes");
+            assertEquals(-1, in.read()); // end marker stays
+        }
+    }
+
+    @Test
+    void edgeLengths() throws IOException {
+        for (int len : new int[]{ 0, 1, BMPC, 3*BMPC, 3*BMPC+1, 500*BMPC+7 }) roundTrip(data(len), b -> {});
+    }
+
+    @Test
+    void packedStream() throws IOException {
+        byte[] text = new byte[50 * BMPC];
+        Arrays.fill(text, (byte)'a');
+        roundTrip(text, b -> b.setCodec(Codec.deflate()));
+    }
+
+    @Test
+    void streamsOneAfterAnother() throws IOException {
+        byte[] first = data(10*BMPC+5), second = data(BMPC/2);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Tunnel sender = sender(wire, b -> {});
+        for (byte[] data : new byte[][]{ first, second })
+            try (TunnelOutputStream out = new TunnelOutputStream(sender)) {
+                out.write(data);
+            }
+
+        Tunnel receiver = receiver(wire.toByteArray(), b -> {});
+        for (byte[] data : new byte[][]{ first, second })
+            try (TunnelInputStream in = new TunnelInputStream(receiver)) {
+                assertArrayEquals(data, readAll(in));
+            }
+    }
+
+    @Test
+    void batchedRecordsUpToAnEmptyOne() throws IOException {
+        byte[][] records = { data(10), data(1), data(30) };
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        try (TunnelBatcher batcher = new TunnelBatcher.Builder().setTunnel(sender(wire, b -> {})).setLinger(1, TimeUnit.HOURS).build()) {
+            for (byte[] record : records) assertTrue(batcher.push(record));
+            assertTrue(batcher.push(new byte[0]));
+            assertTrue(batcher.flush());
+        }
+
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        for (byte[] record : records) all.write(record);
+        try (TunnelInputStream in = new TunnelInputStream(receiver(wire.toByteArray(), b -> {}))) {
+            assertArrayEquals(all.toByteArray(), readAll(in));
+        }
+    }
+
+    @Test
+    void corruptedChestFailsTheRead() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        try (TunnelOutputStream out = new TunnelOutputStream(sender(wire, b -> {}))) {
+            out.write(data(5*BMPC));
+        }
+        byte[] bytes = wire.toByteArray();
+        bytes[bytes.length/2] ^= 1;
+
+        TunnelInputStream in = new TunnelInputStream(receiver(bytes, b -> {}));
+        IOException e = assertThrows(IOException.class, () -> readAll(in));
+        assertEquals("Hash error: Corrupted Integrity or Wrong Key.", e.getMessage());
+    }
+
+    @Test
+    void closedStreamsRefuseIo() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        TunnelOutputStream out = new TunnelOutputStream(sender(wire, b -> {}));
+        out.write(1);
+        out.close();
+        final int sent = wire.size();
+        out.close(); // end marker sent once
+        assertEquals(sent, wire.size());
+        assertThrows(IOException.class, () -> out.write(2));
+        assertThrows(IOException.class, out::flush);
+
+        TunnelInputStream in = new TunnelInputStream(receiver(wire.toByteArray(), b -> {}));
+        assertEquals(1, in.read());
+        in.close();
+        assertThrows(IOException.class, in::read);
+        assertThrows(IOException.class, in::available);
+        assertThrows(IllegalArgumentException.class, () -> new TunnelOutputStream(sender(wire, b -> {}), 0));
+    }
+}
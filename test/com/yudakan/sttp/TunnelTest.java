@@ -0,0 +1,326 @@
+package com.yudakan.sttp;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * -- STTP --
+ * Sequential Two Times Pad
+ * TunnelTest Class
+ *
+ * Round trips of one Tunnel pushing into memory and another one pulling
+ * the same bytes back, every wire header included.
+ *
+ * @author yka
+ * @version 1.0
+ */
+class TunnelTest {
+
+    /* Attributes */
+    private static final int BMPC = 100;
+    private final Random random = new Random(1);
+    private byte[] apurochi, kyori;
+
+
+    /* Methods */
+    @BeforeEach
+    void keys() {
+        apurochi = new Key.Keygen().setBmpc(BMPC).build().toBytes();
+        kyori = new Key.Keygen().setBmpc(BMPC).build().toBytes();
+    }
+
+    private Tunnel sender(ByteArrayOutputStream wire, Consumer<Tunnel.Builder> setup) throws IOException {
+        Tunnel.Builder builder = new Tunnel.Builder()
+                .setIn(new ByteArrayInputStream(new byte[0]))
+                .setOut(wire)
+                .setLog(new ByteArrayOutputStream())
+                .setApurochiKey(new Key(apurochi))
+                .setKyoriKey(new Key(kyori))
+                .setSaveKeys(false);
+        setup.accept(builder);
+        return builder.build();
+    }
+
+    private Tunnel receiver(ByteArrayOutputStream wire, Consumer<Tunnel.Builder> setup) throws IOException {
+        Tunnel.Builder builder = new Tunnel.Builder()
+                .setIn(new ByteArrayInputStream(wire.toByteArray()))
+                .setOut(new ByteArrayOutputStream())
+                .setLog(new ByteArrayOutputStream())
+                .setApurochiKey(new Key(apurochi))
+                .setKyoriKey(new Key(kyori))
+                .setSaveKeys(false);
+        setup.accept(builder);
+        return builder.build();
+    }
+
+    private byte[] message(int len) {
+        byte[] msg = new byte[len];
+        random.nextBytes(msg);
+        return msg;
+    }
+
+    // 0, 1, around one chest & many chests, several parallel batches for the longest
+    private List<byte[]> edgeMessages() {
+        List<byte[]> msgs = new ArrayList<>();
+        for (int len : new int[]{ 0, 1, BMPC-1, BMPC, BMPC+1, 5*BMPC+3, 3000*BMPC+7 }) msgs.add(message(len));
+        return msgs;
+    }
+
+    private void roundTrip(List<byte[]> msgs, Consumer<Tunnel.Builder> setup) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Tunnel sender = sender(wire, setup);
+        for (byte[] msg : msgs) assertTrue(sender.push(msg, 0, msg.length));
+        sender.flush();
+
+        Tunnel receiver = receiver(wire, setup);
+        for (byte[] msg : msgs) assertArrayEquals(msg, receiver.pull(), "message of " + msg.length + " bytes");
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void edgeLengths(boolean trimTail) throws IOException {
+        roundTrip(edgeMessages(), b -> b.setTrimTail(trimTail));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void edgeLengthsInParallel(boolean trimTail) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            roundTrip(edgeMessages(), b -> b.setParallel(pool).setTrimTail(trimTail));
+        }
+        finally { pool.shutdown(); }
+    }
+
+    @Test
+    void pushAndPullAtOnceInParallel() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // Two ends piped both ways, mirrored keys
+            PipedOutputStream aOut = new PipedOutputStream(), bOut = new PipedOutputStream();
+            PipedInputStream aIn = new PipedInputStream(bOut, 1 << 20), bIn = new PipedInputStream(aOut, 1 << 20);
+            Tunnel[] ends = new Tunnel[2];
+            for (int i=0; i < 2; i++)
+                ends[i] = new Tunnel.Builder()
+                        .setIn(i == 0 ? aIn : bIn)
+                        .setOut(i == 0 ? aOut : bOut)
+                        .setLog(new ByteArrayOutputStream())
+                        .setApurochiKey(new Key(i == 0 ? apurochi : kyori))
+                        .setKyoriKey(new Key(i == 0 ? kyori : apurochi))
+                        .setSaveKeys(false)
+                        .setParallel(pool)
+                        .build();
+            for (Tunnel end : ends) end.sender(); // roles fixed before pushes & pulls race
+
+            List<List<byte[]>> msgs = new ArrayList<>();
+            for (int i=0; i < 2; i++) {
+                List<byte[]> way = new ArrayList<>();
+                for (int j=0; j < 30; j++) way.add(message(random.nextInt(2000*BMPC)));
+                msgs.add(way);
+            }
+
+            List<Future<Boolean>> done = new ArrayList<>();
+            for (int i=0; i < 2; i++) {
+                final Tunnel from = ends[i], to = ends[1-i];
+                final List<byte[]> way = msgs.get(i);
+                done.add(executor.submit(() -> {
+                    for (byte[] msg : way)
+                        if (!from.push(msg, 0, msg.length)) return false;
+                    return true;
+                }));
+                done.add(executor.submit(() -> {
+                    for (byte[] msg : way)
+                        if (!Arrays.equals(msg, to.pull())) return false;
+                    return true;
+                }));
+            }
+            for (Future<Boolean> f : done) assertTrue(f.get(60, TimeUnit.SECONDS));
+        }
+        finally {
+            executor.shutdownNow();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void trimmedTailIsShorterOnTheWire() throws IOException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream(), trimmed = new ByteArrayOutputStream();
+        byte[] msg = message(BMPC+1);
+
+        sender(plain, b -> {}).push(msg, 0, msg.length);
+        sender(trimmed, b -> b.setTrimTail(true)).push(msg, 0, msg.length);
+
+        assertTrue(trimmed.size() < plain.size());
+    }
+
+    @Test
+    void pullVariants() throws IOException {
+        List<byte[]> msgs = edgeMessages();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Tunnel sender = sender(wire, b -> {});
+        for (int i=0; i < 3; i++)
+            for (byte[] msg : msgs) sender.push(msg, 0, msg.length);
+        sender.flush();
+
+        Tunnel receiver = receiver(wire, b -> {});
+        for (byte[] msg : msgs) assertArrayEquals(msg, receiver.pull());
+        for (byte[] msg : msgs) {
+            byte[] dst = new byte[msg.length+2];
+            assertEquals(msg.length, receiver.pull(dst, 2));
+            assertArrayEquals(msg, Arrays.copyOfRange(dst, 2, dst.length));
+        }
+        for (byte[] msg : msgs) {
+            ByteArrayOutputStream dst = new ByteArrayOutputStream();
+            assertEquals(msg.length, receiver.pull(dst));
+            assertArrayEquals(msg, dst.toByteArray());
+        }
+    }
+
+    @Test
+    void packedMessages() throws IOException {
+        byte[] text = new byte[20 * BMPC];
+        Arrays.fill(text, (byte)'a');
+
+        List<byte[]> msgs = new ArrayList<>(edgeMessages());
+        msgs.add(text);
+        roundTrip(msgs, b -> b.setCodec(Codec.deflate()));
+
+        // Sender with a codec, receiver without: deflate is always known
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        sender(wire, b -> b.setCodec(Codec.deflate())).push(text, 0, text.length);
+        assertTrue(wire.size() < text.length);
+        assertArrayEquals(text, receiver(wire, b -> {}).pull());
+    }
+
+    @Test
+    void batchedRecords() throws IOException {
+        List<byte[]> msgs = new ArrayList<>();
+        for (int i=0; i < 50; i++) msgs.add(message(random.nextInt(40)));
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Tunnel sender = sender(wire, b -> {});
+        try (TunnelBatcher batcher = new TunnelBatcher.Builder().setTunnel(sender).setLinger(1, TimeUnit.HOURS).build()) {
+            for (byte[] msg : msgs) assertTrue(batcher.push(msg));
+            assertTrue(batcher.flush());
+        }
+
+        // Fewer chests than one message each
+        assertTrue(wire.size() < msgs.size() * 2 * (BMPC+32));
+
+        Tunnel receiver = receiver(wire, b -> {});
+        for (byte[] msg : msgs) assertArrayEquals(msg, receiver.pull());
+    }
+
+    @Test
+    void resizeWindows() throws IOException {
+        ChestSizing sizing = new ChestSizing.Builder().setMinBmpc(16).setMaxBmpc(4096).setWindow(2).build();
+        List<byte[]> msgs = new ArrayList<>();
+        for (int i=0; i < 12; i++) msgs.add(message(3000));
+        for (int i=0; i < 12; i++) msgs.add(message(20));
+        msgs.addAll(edgeMessages());
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Tunnel sender = sender(wire, b -> b.setChestSizing(sizing));
+        List<Integer> sizes = new ArrayList<>();
+        for (byte[] msg : msgs) {
+            sizes.add(sender.getPushMsgfLen());
+            assertTrue(sender.push(msg, 0, msg.length));
+        }
+        sender.flush();
+        // Edge messages after the small ones may grow them again
+        final int widest = sizes.subList(0, 12).stream().max(Integer::compare).get();
+        assertTrue(widest > BMPC, "grown with the big messages: " + sizes);
+        assertTrue(sizes.get(24) < widest, "shrunk with the small ones: " + sizes);
+
+        Tunnel receiver = receiver(wire, b -> {});
+        for (byte[] msg : msgs) assertArrayEquals(msg, receiver.pull());
+    }
+
+    @Test
+    void plainHeaderIsTheOldOne() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Tunnel sender = sender(wire, b -> {});
+        sender.writeHeader(100);
+        sender.flush();
+
+        assertArrayEquals(new byte[]{ 0, 0, 0, 100 }, wire.toByteArray());
+    }
+
+    @Test
+    void longHeader() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Tunnel sender = sender(wire, b -> {});
+        sender.writeHeader(5L << 32);
+        sender.writeHeader(7);
+        sender.flush();
+        assertEquals(12 + 4, wire.size());
+
+        Tunnel receiver = receiver(wire, b -> {});
+        assertEquals(5L << 32, receiver.readHeader());
+        assertEquals(7, receiver.readHeader());
+    }
+
+    @Test
+    void messageKeptForABiggerDestination() throws IOException {
+        byte[] msg = message(3*BMPC), next = message(10);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Tunnel sender = sender(wire, b -> {});
+        sender.push(msg, 0, msg.length);
+        sender.push(next, 0, next.length);
+        sender.flush();
+
+        Tunnel receiver = receiver(wire, b -> {});
+        assertEquals(msg.length, receiver.nextLength());
+        assertEquals(-1, receiver.pull(new byte[msg.length-1], 0));
+
+        ByteArrayOutputStream dst = new ByteArrayOutputStream();
+        assertEquals(msg.length, receiver.pull(dst));
+        assertArrayEquals(msg, dst.toByteArray());
+        assertArrayEquals(next, receiver.pull());
+    }
+
+    @Test
+    void wrongKeyFails() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        byte[] msg = message(BMPC);
+        sender(wire, b -> {}).push(msg, 0, msg.length);
+
+        Tunnel receiver = receiver(wire, b -> b.setApurochiKey(new Key.Keygen().setBmpc(BMPC).build()));
+        assertNull(receiver.pull());
+    }
+
+    @Test
+    void keysRollWithEveryChest() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Tunnel sender = sender(wire, b -> {});
+        byte[] before = sender.getPushKey();
+        sender.push(message(1), 0, 1);
+
+        assertNotEquals(Arrays.toString(before), Arrays.toString(sender.getPushKey()));
+    }
+}